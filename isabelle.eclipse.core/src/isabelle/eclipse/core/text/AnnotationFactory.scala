@@ -1,5 +1,9 @@
 package isabelle.eclipse.core.text
 
+import java.lang.ref.WeakReference
+
+import scala.collection.mutable.WeakHashMap
+
 import isabelle.{Markup, Pretty, Protocol, Text, XML}
 import isabelle.Command
 import isabelle.Document.Snapshot
@@ -24,9 +28,8 @@ object AnnotationFactory {
   def createAnnotations(snapshot: Snapshot, ranges: List[Text.Range]): List[AnnotationInfo] = {
 
     def allAnnotations(range: Text.Range) =
-      createStatusAnnotations(snapshot, range) ++
-        createMarkupAnnotations(snapshot, range) ++
-        createMessageAnnotations(snapshot, range)
+      if (snapshot.is_outdated) List(AnnotationInfo(IsabelleAnnotation.STATUS_OUTDATED, range))
+      else createCommandAnnotations(snapshot, range)
 
     // for each range calculate the different annotations
     // also remove duplicate annotations
@@ -40,106 +43,207 @@ object AnnotationFactory {
     annotations.sortWith((a1, a2) => a1.range.stop < a2.range.stop)
   }
 
+  /**
+   * Creates annotations of commands in the given range. The annotations of each command are
+   * calculated for the whole command (relative to its start) and memoized for its state, so only
+   * commands with changed results get recalculated. The annotations are then moved to the
+   * command position and restricted to the range.
+   */
+  private def createCommandAnnotations(snapshot: Snapshot, range: Text.Range): List[AnnotationInfo] = {
+
+    val formerRange = snapshot.revert(range)
+
+    CommandIndex(snapshot).commandRange(formerRange).toList flatMap { case (command, commandStart) =>
+
+      val state = snapshot.state.command_state(snapshot.version, command)
+
+      commandAnnotations(state) flatMap { ann =>
+        val annRange = (ann.range + commandStart).try_restrict(formerRange)
+        annRange filterNot (_.is_singularity) map { r => ann.copy(range = snapshot.convert(r)) }
+      }
+    }
+  }
+
+
+  /**
+   * Memoized command annotations (relative to the command start) with the state they are for.
+   * The state is referenced weakly: it references the command, which would otherwise keep
+   * the weak key reachable and the entry would never be released.
+   */
+  private val commandAnnotationCache =
+    WeakHashMap[Command, (WeakReference[Command.State], List[AnnotationInfo])]()
+
+  /** Retrieves annotations of the command state, relative to the command start. */
+  private def commandAnnotations(state: Command.State): List[AnnotationInfo] = {
+    val command = state.command
+    val cached = commandAnnotationCache.synchronized { commandAnnotationCache.get(command) }
+
+    cached match {
+      // command states are immutable, so the annotations are valid while the state is the same
+      case Some((cachedState, anns)) if cachedState.get eq state => anns
+      case _ => {
+        val anns = calcCommandAnnotations(state)
+        val entry = (new WeakReference(state), anns)
+        commandAnnotationCache.synchronized { commandAnnotationCache.put(command, entry) }
+        anns
+      }
+    }
+  }
+
+  /**
+   * Calculates all annotations of the command state in a single traversal of its markup tree.
+   * The status, markup and message annotations are accumulated as separate layers, each
+   * remembering the range of the markup that set it. This allows splitting the results into
+   * the same annotations as separate traversals for each layer would give.
+   */
+  private def calcCommandAnnotations(state: Command.State): List[AnnotationInfo] = {
+
+    val commandRange = state.command.range
+
+    val rootInfo = Layers(
+      Layer((Some(Protocol.Status.init), None), commandRange),
+      Layer(None, commandRange),
+      Layer(None, commandRange))
+
+    val result = new PartialFunction[(Layers, Text.Markup), Layers] {
+
+      override def isDefinedAt(arg: (Layers, Text.Markup)) = {
+        val (layers, markup) = arg
+        statusResult.isDefinedAt((layers.status.value, markup)) ||
+          markupResult.isDefinedAt(markup) || messageResult.isDefinedAt(markup)
+      }
+
+      override def apply(arg: (Layers, Text.Markup)) = {
+        val (layers, markup) = arg
+        val source = markup.range
+
+        def update[A, B](layer: Layer[A], f: PartialFunction[B, A], fArg: B) =
+          if (f.isDefinedAt(fArg)) Layer(f(fArg), source) else layer
+
+        Layers(
+          update(layers.status, statusResult, (layers.status.value, markup)),
+          update(layers.markup, markupResult andThen (Some(_)), markup),
+          update(layers.message, messageResult andThen (Some(_)), markup))
+      }
+    }
+
+    val pieces = state.markup.cumulate[Layers](
+      commandRange, rootInfo, Some(statusInclude ++ markupInclude ++ messageInclude), result).toList
+
+    val statusAnns = for {
+      Text.Info(r, status) <- layerPieces(pieces)(_.status)
+      annType <- statusAnnotation(status)
+    } yield AnnotationInfo(annType, r)
+
+    val markupAnns = for {
+      Text.Info(r, Some(annType)) <- layerPieces(pieces)(_.markup)
+    } yield AnnotationInfo(annType, r)
+
+    val messageAnns = for {
+      Text.Info(r, Some((annType, msg))) <- layerPieces(pieces)(_.message)
+    } yield AnnotationInfo(annType, r, Some(msg))
+
+    statusAnns ::: markupAnns ::: messageAnns
+  }
+
+  /** A value accumulated in a markup traversal, with the range of the markup that set it */
+  private case class Layer[A](value: A, source: Text.Range)
+
+  private case class Layers(status: Layer[(Option[Protocol.Status], Option[IsabelleAnnotation])],
+                            markup: Layer[Option[IsabelleAnnotation]],
+                            message: Layer[Option[(IsabelleAnnotation, String)]])
+
+  /**
+   * Extracts the pieces of a single layer from the traversal results. Adjacent pieces that got
+   * the layer value from the same markup are joined, since they were only split by other layers.
+   */
+  private def layerPieces[A](pieces: List[Text.Info[Layers]])
+                            (layer: Layers => Layer[A]): List[Text.Info[A]] = {
+
+    val joined = pieces.foldLeft(List[(Text.Range, Layer[A])]()) {
+      case ((lastRange, lastLayer) :: rest, Text.Info(r, layers))
+          if layer(layers) == lastLayer && lastRange.stop == r.start =>
+        (Text.Range(lastRange.start, r.stop), lastLayer) :: rest
+
+      case (acc, Text.Info(r, layers)) => (r, layer(layers)) :: acc
+    }
+
+    joined.reverse map { case (r, l) => Text.Info(r, l.value) }
+  }
+
+
   private val statusInclude =
     Protocol.command_status_markup + Markup.WRITELN_MESSAGE + Markup.TRACING_MESSAGE +
       Markup.WARNING_MESSAGE + Markup.ERROR_MESSAGE + Markup.BAD + Markup.INTENSIFY// ++
 //      active_include
 
-  /** Creates command status annotations (e.g. unprocessed/outdated, etc.) */
-  private def createStatusAnnotations(snapshot: Snapshot, range: Text.Range): Stream[AnnotationInfo] = {
-
-    if (snapshot.is_outdated) Stream(AnnotationInfo(IsabelleAnnotation.STATUS_OUTDATED, range))
-    else {
-      for {
-        Text.Info(r, result) <-
-          snapshot.cumulate_markup[(Option[Protocol.Status], Option[IsabelleAnnotation])](
-            range, (Some(Protocol.Status.init), None), Some(statusInclude), command_state =>
-            {
-              case (((Some(status), annType), Text.Info(_, XML.Elem(markup, _))))
-                if (Protocol.command_status_markup(markup.name)) =>
-                  (Some(Protocol.command_status(status, markup)), annType)
-              case (_, Text.Info(_, XML.Elem(Markup(Markup.WRITELN_MESSAGE, _), _))) =>
-                (None, Some(IsabelleAnnotation.MESSAGE_WRITELN))
-              case (_, Text.Info(_, XML.Elem(Markup(Markup.WARNING_MESSAGE, _), _))) =>
-                (None, Some(IsabelleAnnotation.MESSAGE_WARNING))
-              case (_, Text.Info(_, XML.Elem(Markup(Markup.ERROR_MESSAGE, _), _))) =>
-                (None, Some(IsabelleAnnotation.MESSAGE_ERROR))
-              case (_, Text.Info(_, XML.Elem(Markup(Markup.TRACING_MESSAGE, _), _))) =>
-                (None, Some(IsabelleAnnotation.MESSAGE_TRACING))
-              case (_, Text.Info(_, XML.Elem(Markup(Markup.BAD, _), _))) =>
-                (None, Some(IsabelleAnnotation.MARKUP_BAD))
-              case (_, Text.Info(_, XML.Elem(Markup(Markup.INTENSIFY, _), _))) =>
-                (None, Some(IsabelleAnnotation.MARKUP_INTENSIFY))
-            })
-
-        annType <- 
-          (result match {
-            case (Some(status), annHint) =>
-              if (status.is_running) Some(IsabelleAnnotation.STATUS_UNFINISHED)
-              else if (status.is_unprocessed) Some(IsabelleAnnotation.STATUS_UNPROCESSED)
-              else annHint
-            case (_, annHint) => annHint
-          })
-      } yield AnnotationInfo(annType, r)
-    }
+  /** Accumulates command status (e.g. unprocessed/outdated, etc.) */
+  private val statusResult: PartialFunction[((Option[Protocol.Status], Option[IsabelleAnnotation]), Text.Markup),
+                                            (Option[Protocol.Status], Option[IsabelleAnnotation])] = {
+    case (((Some(status), annType), Text.Info(_, XML.Elem(markup, _))))
+      if (Protocol.command_status_markup(markup.name)) =>
+        (Some(Protocol.command_status(status, markup)), annType)
+    case (_, Text.Info(_, XML.Elem(Markup(Markup.WRITELN_MESSAGE, _), _))) =>
+      (None, Some(IsabelleAnnotation.MESSAGE_WRITELN))
+    case (_, Text.Info(_, XML.Elem(Markup(Markup.WARNING_MESSAGE, _), _))) =>
+      (None, Some(IsabelleAnnotation.MESSAGE_WARNING))
+    case (_, Text.Info(_, XML.Elem(Markup(Markup.ERROR_MESSAGE, _), _))) =>
+      (None, Some(IsabelleAnnotation.MESSAGE_ERROR))
+    case (_, Text.Info(_, XML.Elem(Markup(Markup.TRACING_MESSAGE, _), _))) =>
+      (None, Some(IsabelleAnnotation.MESSAGE_TRACING))
+    case (_, Text.Info(_, XML.Elem(Markup(Markup.BAD, _), _))) =>
+      (None, Some(IsabelleAnnotation.MARKUP_BAD))
+    case (_, Text.Info(_, XML.Elem(Markup(Markup.INTENSIFY, _), _))) =>
+      (None, Some(IsabelleAnnotation.MARKUP_INTENSIFY))
   }
 
+  /** Resolves the command status annotation from the accumulated status */
+  private def statusAnnotation(result: (Option[Protocol.Status], Option[IsabelleAnnotation])) =
+    result match {
+      case (Some(status), annHint) =>
+        if (status.is_running) Some(IsabelleAnnotation.STATUS_UNFINISHED)
+        else if (status.is_unprocessed) Some(IsabelleAnnotation.STATUS_UNPROCESSED)
+        else annHint
+      case (_, annHint) => annHint
+    }
 
-  /** Creates markup annotations (e.g. ranges which should be highlighted in some way) */
-  private def createMarkupAnnotations(snapshot: Snapshot, range: Text.Range): Stream[AnnotationInfo] = {
 
-    val results =
-      snapshot.select_markup[IsabelleAnnotation](range, Some(Set(Markup.TOKEN_RANGE)), _ =>
-        {
-          case Text.Info(_, XML.Elem(Markup(Markup.TOKEN_RANGE, _), _)) =>
-            IsabelleAnnotation.MARKUP_TOKEN_RANGE
-        })
+  private val markupInclude = Set(Markup.TOKEN_RANGE)
 
-    results map { case Text.Info(r, annType) => AnnotationInfo(annType, r) }
+  /** Selects markup annotations (e.g. ranges which should be highlighted in some way) */
+  private val markupResult: PartialFunction[Text.Markup, IsabelleAnnotation] = {
+    case Text.Info(_, XML.Elem(Markup(Markup.TOKEN_RANGE, _), _)) =>
+      IsabelleAnnotation.MARKUP_TOKEN_RANGE
   }
-  
 
-  /** Creates message annotations (e.g. errors/warnings) */
-  private def createMessageAnnotations(snapshot: Snapshot, range: Text.Range): Stream[AnnotationInfo] = {
-
-    val msgMarkups = Set(Markup.WRITELN, Markup.WARNING, Markup.ERROR)
-    
-    val results =
-      snapshot.select_markup[(IsabelleAnnotation, String)](range,
-        // Markups in the snapshot that have associated messages and should be created as annotations.
-        Some(msgMarkups), _ =>
-        {
-          case Text.Info(_, msg @ XML.Elem(Markup(name, _), body)) if msgMarkups.contains(name) => {
-            val annType = name match {
-              case Markup.WRITELN => IsabelleAnnotation.MESSAGE_WRITELN
-              case Markup.WARNING => body match {
-                case List(XML.Elem(Markup(Markup.LEGACY, _), _)) =>
-                  IsabelleAnnotation.MESSAGE_LEGACY
-                case _ => IsabelleAnnotation.MESSAGE_WARNING
-              }
-              case Markup.ERROR => IsabelleAnnotation.MESSAGE_ERROR
-              // default case should not happen - only message markups are selected
-            }
-
-            val msgStr = Pretty.string_of(List(msg))
-            (annType, msgStr)
-          }
-        })
-
-    results map { case Text.Info(r, (annType, msg)) => AnnotationInfo(annType, r, Some(msg)) }
-  }
-  
 
-  /** Calculates document ranges for the given commands. */
-  def commandRanges(snapshot: Snapshot, commands: Set[Command]): List[Text.Range] = {
+  /** Markups in the snapshot that have associated messages and should be created as annotations. */
+  private val messageInclude = Set(Markup.WRITELN, Markup.WARNING, Markup.ERROR)
 
-    val ranges = snapshot.node.command_range(0).collect {
-      case (cmd, start) if commands.contains(cmd) => cmd.range + start
-    }
+  /** Selects message annotations (e.g. errors/warnings) */
+  private val messageResult: PartialFunction[Text.Markup, (IsabelleAnnotation, String)] = {
+    case Text.Info(_, msg @ XML.Elem(Markup(name, _), body)) if messageInclude.contains(name) => {
+      val annType = name match {
+        case Markup.WRITELN => IsabelleAnnotation.MESSAGE_WRITELN
+        case Markup.WARNING => body match {
+          case List(XML.Elem(Markup(Markup.LEGACY, _), _)) =>
+            IsabelleAnnotation.MESSAGE_LEGACY
+          case _ => IsabelleAnnotation.MESSAGE_WARNING
+        }
+        case Markup.ERROR => IsabelleAnnotation.MESSAGE_ERROR
+        // default case should not happen - only message markups are selected
+      }
 
-    ranges.toList
+      val msgStr = Pretty.string_of(List(msg))
+      (annType, msgStr)
+    }
   }
   
+
+  /** Calculates document ranges for the given commands. */
+  def commandRanges(snapshot: Snapshot, commands: Set[Command]): List[Text.Range] =
+    CommandIndex(snapshot).ranges(commands)
+  
 }
 
 /**
@@ -0,0 +1,98 @@
+package isabelle.eclipse.core.text
+
+import scala.collection.mutable.WeakHashMap
+
+import isabelle.{Command, Document, Text}
+import isabelle.Document.Snapshot
+
+
+/**
+ * An index of document node commands and their start offsets, for quick lookups of commands
+ * by offset (binary search) and of command offsets (hash lookup).
+ *
+ * The lookups follow the semantics of the corresponding `Document.Node` methods, which walk
+ * the commands linearly.
+ *
+ * @author Andrius Velykis
+ */
+class CommandIndex private (commands: Array[Command], starts: Array[Int], length: Int) {
+
+  private val indexes: Map[Command, Int] = commands.zipWithIndex.toMap
+
+  def size = commands.length
+
+  /** All commands with their start offsets (as `Document.Node.command_range()`) */
+  def iterator: Iterator[(Command, Text.Offset)] = iterator(0)
+
+  private def iterator(from: Int): Iterator[(Command, Text.Offset)] =
+    Iterator.range(from, commands.length) map { i => (commands(i), starts(i)) }
+
+  /** The start offset of the command in the node (as `Document.Node.command_start()`) */
+  def start(command: Command): Option[Text.Offset] = indexes.get(command) map starts
+
+  /** The range of the command in the node */
+  def range(command: Command): Option[Text.Range] = start(command) map (command.range + _)
+
+  /** Ranges of the given commands, in the order of the node */
+  def ranges(commands: Set[Command]): List[Text.Range] =
+    commands.toList.flatMap(indexes.get).sorted map { i => this.commands(i).range + starts(i) }
+
+  /**
+   * Commands from the one at the given offset till the end of node
+   * (as `Document.Node.command_range(i)`).
+   */
+  def commandRange(offset: Text.Offset): Iterator[(Command, Text.Offset)] =
+    if (commands.isEmpty || !Text.Range(0, length).contains(offset)) {
+      Iterator.empty
+    } else {
+      // find the last command starting at or before the offset
+      val found = java.util.Arrays.binarySearch(starts, offset)
+      var i = if (found >= 0) found else math.max(-found - 2, 0)
+
+      // skip the commands before the offset (e.g. empty ones)
+      while (i < commands.length && starts(i) + commands(i).length <= offset) {
+        i += 1
+      }
+
+      iterator(i)
+    }
+
+  /** Commands overlapping the given range (as `Document.Node.command_range(range)`) */
+  def commandRange(range: Text.Range): Iterator[(Command, Text.Offset)] =
+    commandRange(range.start) takeWhile { case (_, start) => start < range.stop }
+
+  /** The command at the given offset (as `Document.Node.command_at()`) */
+  def commandAt(offset: Text.Offset): Option[(Command, Text.Offset)] =
+    commandRange(offset).toStream.headOption
+
+}
+
+object CommandIndex {
+
+  // Nodes are immutable, so the index is valid while the node is in use (e.g. by a snapshot).
+  // The index is released together with the node when it is no longer current.
+  private val indexes = WeakHashMap[Document.Node, CommandIndex]()
+
+  /** Retrieves the (cached) command index of the snapshot node. */
+  def apply(snapshot: Snapshot): CommandIndex = apply(snapshot.node)
+
+  /** Retrieves the (cached) command index of the node. */
+  def apply(node: Document.Node): CommandIndex = {
+    val cached = indexes.synchronized { indexes.get(node) }
+    cached getOrElse {
+      val index = build(node)
+      indexes.synchronized { indexes.put(node, index) }
+      index
+    }
+  }
+
+  private def build(node: Document.Node): CommandIndex = {
+    val commandStarts = Document.Node.command_starts(node.commands.iterator).toArray
+    val commands = commandStarts map (_._1)
+    val starts = commandStarts map (_._2)
+    val length = if (commands.isEmpty) 0 else starts.last + commands.last.length
+
+    new CommandIndex(commands, starts, length)
+  }
+
+}
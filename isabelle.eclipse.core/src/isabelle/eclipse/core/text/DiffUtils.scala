@@ -1,35 +1,43 @@
 package isabelle.eclipse.core.text
 
+import scala.collection.mutable.ListBuffer
+
 /** Utilities to perform `diff` on text: find differences between two strings and calculate replacements
   * to bring the one of the strings to match the other one.
-  * 
-  * @author Andrius Velykis 
+  *
+  * The texts are compared word-by-word using Myers' O(ND) difference algorithm (the linear space
+  * version). The words are represented as offset arrays over the original text, so no intermediate
+  * strings are created during the comparison.
+  *
+  * @author Andrius Velykis
   */
 object DiffUtils {
 
+  /** Maximum number of word comparisons for a single `diff`. For pathological inputs (e.g. very
+    * long and completely different texts), the remaining difference is reported as a whole.
+    */
+  val MAX_DIFF_COST = 1 << 20
+
   /** Finds differences between the given string arguments. Performs word-based matching with additional
     * checks for common word prefix/suffix.
-    * 
+    *
     * @param left  first text to compare
     * @param right  second text to compare
     * @return  list of differences between the texts as ((offsetInLeft, leftTextDiff), (offsetInRight, rightTextDiff)).
     */
   def diff(left: String, right: String): List[((Int, String), (Int, String))] = {
 
-    import org.eclipse.compare.rangedifferencer.RangeDifferencer
-    import StringTokenComparator._
+    val leftWords = Words(left)
+    val rightWords = Words(right)
 
-    // use word comparators
-    val leftComp = wordComparator(left)
-    val rightComp = wordComparator(right)
+    val hunks = new WordDiff(leftWords, rightWords).diff()
 
-    // use Eclipse's diff utilities
-    val diffs = RangeDifferencer.findDifferences(leftComp, rightComp);
-
-    // for each range diff, resolve the actual text diffs
-    diffs.toList map { diff =>
-      val (leftOffset, leftContent) = leftComp.tokenRangeContent(diff.leftStart, diff.leftLength)
-      val (rightOffset, rightContent) = rightComp.tokenRangeContent(diff.rightStart, diff.rightLength)
+    // for each word range diff, resolve the actual text diffs
+    hunks map { case Hunk(leftStart, leftEnd, rightStart, rightEnd) =>
+      val leftOffset = leftWords.start(leftStart)
+      val rightOffset = rightWords.start(rightStart)
+      val leftContent = left.substring(leftOffset, leftWords.start(leftEnd))
+      val rightContent = right.substring(rightOffset, rightWords.start(rightEnd))
 
       // words are different - try the difference further by checking for common prefix/suffix
       val ((leftWordOffset, leftWordDiff), (rightWordOffset, rightWordDiff)) = diffWord(leftContent, rightContent)
@@ -37,56 +45,264 @@ object DiffUtils {
       ((leftOffset + leftWordOffset, leftWordDiff), (rightOffset + rightWordOffset, rightWordDiff))
     }
   }
-  
-  /** Finds difference between two words. Returns the non-matching middle of the two words by 
+
+  /** Finds difference between two words. Returns the non-matching middle of the two words by
     * checking if the words have common prefix or suffix. No further `diff` is performed.
     */
   def diffWord(left: String, right: String): ((Int, String), (Int, String)) = {
 
-    def dropCommonPrefix(diff: ((Int, String), (Int, String))): ((Int, String), (Int, String)) = {
-      // unpack tuple
-      val ((leftOffset, left), (rightOffset, right)) = diff
-      val prefix = longestCommonPrefix(left, right)
-      if (prefix > 0) {
-        // found common prefix - adjust the offset and drop the prefix
-        ((leftOffset + prefix, left.substring(prefix)), (rightOffset + prefix, right.substring(prefix)))
-      } else {
-        // nothing in common - return the originals
-        diff
-      }
+    val prefix = longestCommonPrefix(left, right)
+    // do not let the suffix overlap the prefix
+    val suffix = longestCommonSuffix(left, right, math.min(left.length, right.length) - prefix)
+
+    ((prefix, left.substring(prefix, left.length - suffix)),
+     (prefix, right.substring(prefix, right.length - suffix)))
+  }
+
+  /** Finds the length of the longest common prefix of both arguments. */
+  def longestCommonPrefix(a: CharSequence, b: CharSequence): Int = {
+    val max = math.min(a.length, b.length)
+    var i = 0
+    while (i < max && a.charAt(i) == b.charAt(i)) {
+      i += 1
     }
+    i
+  }
 
-    def dropCommonSuffix(diff: ((Int, String), (Int, String))): ((Int, String), (Int, String)) = {
-      val ((leftOffset, left), (rightOffset, right)) = diff
-      val suffix = longestCommonPrefix(left.reverse, right.reverse)
-      
-      def dropRight(str: String, n: Int) = str.substring(0, str.length - n)
+  /** Finds the length of the longest common suffix of both arguments, up to the given maximum. */
+  def longestCommonSuffix(a: CharSequence, b: CharSequence, max: Int): Int = {
+    var i = 0
+    while (i < max && a.charAt(a.length - i - 1) == b.charAt(b.length - i - 1)) {
+      i += 1
+    }
+    i
+  }
 
-      if (suffix > 0) {
-        // found common suffix - drop it from the strings
-        ((leftOffset, dropRight(left, suffix)), (rightOffset, dropRight(right, suffix)))
-      } else {
-        // nothing in common - return the originals
-        diff
+
+  /** A difference between word ranges [leftStart, leftEnd) and [rightStart, rightEnd). */
+  private case class Hunk(leftStart: Int, leftEnd: Int, rightStart: Int, rightEnd: Int)
+
+
+  /** Words (and whitespace/punctuation between them) of a text, as offset arrays over the text.
+    *
+    * @param ends    end offsets of the words (i.e. prefix sums of word lengths)
+    * @param hashes  word hashes for quick comparison
+    */
+  private class Words(private val text: CharSequence,
+                      private val ends: Array[Int],
+                      private val hashes: Array[Int],
+                      val count: Int) {
+
+    /** Start offset of the word (or the end of text if `i == count`) */
+    def start(i: Int): Int = if (i == 0) 0 else ends(i - 1)
+
+    def same(i: Int, other: Words, j: Int): Boolean =
+      hashes(i) == other.hashes(j) && {
+        val start1 = start(i)
+        val start2 = other.start(j)
+        val length = ends(i) - start1
+        length == other.ends(j) - start2 && sameChars(start1, other, start2, length)
+      }
+
+    private def sameChars(start1: Int, other: Words, start2: Int, length: Int): Boolean = {
+      var k = 0
+      while (k < length && text.charAt(start1 + k) == other.text.charAt(start2 + k)) {
+        k += 1
       }
+      k == length
     }
+  }
+
+  private object Words {
+
+    private def isWordChar(c: Char) = Character.isLetterOrDigit(c) || c == '_'
+
+    /** Splits the text into words and the non-word character runs between them. */
+    def apply(text: CharSequence): Words = {
+      val length = text.length
+      val ends = new Array[Int](length)
+      val hashes = new Array[Int](length)
+
+      var count = 0
+      var hash = 0
+      var i = 0
+      while (i < length) {
+        val c = text.charAt(i)
+        hash = 31 * hash + c
+        i += 1
+
+        // end the word at the boundary between word and non-word characters
+        if (i == length || isWordChar(c) != isWordChar(text.charAt(i))) {
+          ends(count) = i
+          hashes(count) = hash
+          count += 1
+          hash = 0
+        }
+      }
 
-    // check for common prefix/suffix
-    dropCommonSuffix(dropCommonPrefix((0, left), (0, right)))
+      new Words(text, ends, hashes, count)
+    }
   }
-  
-  /** Finds the length of the longest common prefix of both arguments. */
-  def longestCommonPrefix(a: String, b: String): Int = {
-    var same = true
-    var i = 0
-    while (same && i < math.min(a.length, b.length)) {
-      if (a.charAt(i) != b.charAt(i)) {
-        same = false
+
+
+  /** Myers' difference algorithm over the words, using the linear space refinement (recursive
+    * bisection at the "middle snake"). Common prefix/suffix is trimmed at every step.
+    */
+  private class WordDiff(left: Words, right: Words) {
+
+    private val hunks = ListBuffer[Hunk]()
+
+    def diff(): List[Hunk] = {
+      diffRange(0, left.count, 0, right.count)
+      hunks.toList
+    }
+
+    private def diffRange(leftStart: Int, leftEnd: Int, rightStart: Int, rightEnd: Int) {
+
+      var l0 = leftStart
+      var r0 = rightStart
+      var l1 = leftEnd
+      var r1 = rightEnd
+
+      // trim the common prefix and suffix
+      while (l0 < l1 && r0 < r1 && left.same(l0, right, r0)) {
+        l0 += 1
+        r0 += 1
+      }
+      while (l0 < l1 && r0 < r1 && left.same(l1 - 1, right, r1 - 1)) {
+        l1 -= 1
+        r1 -= 1
+      }
+
+      if (l0 == l1 || r0 == r1) {
+        // only insertion or deletion left (if any)
+        if (l0 < l1 || r0 < r1) {
+          hunks += Hunk(l0, l1, r0, r1)
+        }
       } else {
-        i += 1
+        bisect(l0, l1, r0, r1) match {
+          case Some((l, r)) => {
+            diffRange(l0, l, r0, r)
+            diffRange(l, l1, r, r1)
+          }
+          // no common words found (or too expensive to look for them)
+          case None => hunks += Hunk(l0, l1, r0, r1)
+        }
       }
     }
-    i
+
+    /** Finds the "middle snake" of the difference, which splits it into two smaller ones.
+      * The ranges must be non-empty.
+      *
+      * @return  the split point in both ranges, or `None` if the ranges have nothing in common
+      *          (or finding the split is too expensive)
+      */
+    private def bisect(leftStart: Int, leftEnd: Int, rightStart: Int, rightEnd: Int): Option[(Int, Int)] = {
+
+      val n = leftEnd - leftStart
+      val m = rightEnd - rightStart
+
+      def same(x: Int, y: Int) = left.same(leftStart + x, right, rightStart + y)
+
+      val maxD = math.min((n + m + 1) / 2, math.max(MAX_DIFF_COST / (n + m), 1))
+      val vOffset = maxD + 1
+      val vLength = 2 * maxD + 2
+      // furthest reaching x for each diagonal, in forward and reverse directions
+      val vf = Array.fill(vLength)(-1)
+      val vr = Array.fill(vLength)(-1)
+      vf(vOffset + 1) = 0
+      vr(vOffset + 1) = 0
+
+      val delta = n - m
+      // if the difference in lengths is odd, the front path will collide with the reverse path
+      val front = delta % 2 != 0
+
+      // offsets to trim the diagonals that run off the edges
+      var kfStart = 0
+      var kfEnd = 0
+      var krStart = 0
+      var krEnd = 0
+
+      var d = 0
+      while (d < maxD) {
+
+        // walk the front path one step
+        var kf = -d + kfStart
+        while (kf <= d - kfEnd) {
+          val kfOffset = vOffset + kf
+          var x = if (kf == -d || (kf != d && vf(kfOffset - 1) < vf(kfOffset + 1))) {
+            vf(kfOffset + 1)
+          } else {
+            vf(kfOffset - 1) + 1
+          }
+          var y = x - kf
+          while (x < n && y < m && same(x, y)) {
+            x += 1
+            y += 1
+          }
+          vf(kfOffset) = x
+
+          if (x > n) {
+            // ran off the right of the graph
+            kfEnd += 2
+          } else if (y > m) {
+            // ran off the bottom of the graph
+            kfStart += 2
+          } else if (front) {
+            val krOffset = vOffset + delta - kf
+            if (krOffset >= 0 && krOffset < vLength && vr(krOffset) != -1) {
+              // mirror x2 onto top-left coordinate system
+              if (x >= n - vr(krOffset)) {
+                return Some((leftStart + x, rightStart + y))
+              }
+            }
+          }
+
+          kf += 2
+        }
+
+        // walk the reverse path one step
+        var kr = -d + krStart
+        while (kr <= d - krEnd) {
+          val krOffset = vOffset + kr
+          var x = if (kr == -d || (kr != d && vr(krOffset - 1) < vr(krOffset + 1))) {
+            vr(krOffset + 1)
+          } else {
+            vr(krOffset - 1) + 1
+          }
+          var y = x - kr
+          while (x < n && y < m && same(n - x - 1, m - y - 1)) {
+            x += 1
+            y += 1
+          }
+          vr(krOffset) = x
+
+          if (x > n) {
+            // ran off the left of the graph
+            krEnd += 2
+          } else if (y > m) {
+            // ran off the top of the graph
+            krStart += 2
+          } else if (!front) {
+            val kfOffset = vOffset + delta - kr
+            if (kfOffset >= 0 && kfOffset < vLength && vf(kfOffset) != -1) {
+              val xf = vf(kfOffset)
+              val yf = vOffset + xf - kfOffset
+              // mirror x onto top-left coordinate system
+              if (xf >= n - x) {
+                return Some((leftStart + xf, rightStart + yf))
+              }
+            }
+          }
+
+          kr += 2
+        }
+
+        d += 1
+      }
+
+      None
+    }
   }
-  
+
 }
@@ -2,14 +2,13 @@ package isabelle.eclipse.core.text
 
 import java.util.concurrent.locks.ReentrantReadWriteLock
 
-import scala.collection.mutable.ListBuffer
+import scala.collection.mutable.ArrayBuffer
 
-import org.eclipse.core.runtime.{IProgressMonitor, NullProgressMonitor, Status}
-import org.eclipse.core.runtime.jobs.Job
-import org.eclipse.jface.text.{DocumentEvent, IDocument, IDocumentListener}
+import org.eclipse.core.runtime.{IProgressMonitor, NullProgressMonitor}
+import org.eclipse.jface.text.{BadLocationException, DocumentEvent, IDocument, IDocumentListener}
 
 import isabelle.{Document, Session, Text}
-import isabelle.eclipse.core.util.{PostponeJob, SerialSchedulingRule}
+import isabelle.eclipse.core.util.{FlushScheduler, SerialSchedulingRule}
 import isabelle.eclipse.core.util.ConcurrentUtil.FunReadWriteLock
 
 
@@ -27,10 +26,109 @@ object EditDocumentModel {
    * Used for submitting content to the Isabelle prover backend.
    */
   val serialSubmitRule = new SerialSchedulingRule
-  
-  // TODO add as a configurable option
-  val flushDelay = 300
-  
+
+  /** The initial length of text to scan for the end of the theory header */
+  private val HEADER_SCAN_LENGTH = 4096
+
+
+  /**
+   * Creates edits to (re)initialise the document node with the given text from scratch.
+   */
+  def initEdits(session: Session,
+                name: Document.Node.Name,
+                header: Document.Node.Header,
+                text: String,
+                perspective: Text.Perspective): List[Document.Edit_Text] =
+    List(session.header_edit(name, header),
+      name -> Document.Node.Clear(),
+      name -> Document.Node.Edits(List(Text.Edit.insert(0, text))),
+      name -> Document.Node.Perspective(perspective))
+
+  /**
+   * Checks if the given text has already been submitted as-is to the prover as the node text.
+   */
+  def alreadySubmitted(node: Document.Node, text: => TextFingerprint, length: Int): Boolean = {
+    val submitted = TextFingerprint(node)
+
+    // check if the submitted text is the same as the current one - then submitted as-is
+    // (compare the lengths first to avoid reading the text)
+    submitted.length == length && submitted == text
+  }
+
+  /**
+   * Appends the edit to the edit queue, merging it with the last edit in the queue if possible.
+   * This way the queue is kept normalised, e.g. typing a line results in a single insert edit,
+   * rather than an edit per character.
+   */
+  def appendEdit(edits: ArrayBuffer[Text.Edit], edit: Text.Edit) {
+    val merged = edits.lastOption flatMap { last => mergeEdits(last, edit) }
+
+    merged match {
+      case Some(replacement) => {
+        edits.remove(edits.length - 1)
+        edits ++= replacement
+      }
+      case None => edits += edit
+    }
+  }
+
+  /**
+   * Merges two subsequent edits into an equivalent minimal list of edits (possibly empty).
+   * Returns `None` if the edits cannot be merged.
+   */
+  private def mergeEdits(first: Text.Edit, second: Text.Edit): Option[List[Text.Edit]] = {
+
+    val (start, text) = (first.start, first.text)
+    val end = start + text.length
+    val (start2, text2) = (second.start, second.text)
+    val end2 = start2 + text2.length
+
+    (first.is_insert, second.is_insert) match {
+
+      // insert into (or next to) the inserted text: merge the inserts
+      case (true, true) if start <= start2 && start2 <= end => {
+        val split = start2 - start
+        Some(List(Text.Edit.insert(start, text.substring(0, split) + text2 + text.substring(split))))
+      }
+
+      // remove within the inserted text: remove from the insert (cancels it if all is removed)
+      case (true, false) if start <= start2 && end2 <= end => {
+        val remaining = text.substring(0, start2 - start) + text.substring(end2 - start)
+        Some(if (remaining.isEmpty) Nil else List(Text.Edit.insert(start, remaining)))
+      }
+
+      // remove before the removed text (e.g. backspace)
+      case (false, false) if end2 == start => Some(List(Text.Edit.remove(start2, text2 + text)))
+
+      // remove after the removed text (e.g. delete)
+      case (false, false) if start2 == start => Some(List(Text.Edit.remove(start, text + text2)))
+
+      // replacement: only keep the changed middle part
+      case (false, true) if start2 == start => Some(replaceEdits(start, text, text2))
+
+      case _ => None
+    }
+  }
+
+  /**
+   * Creates minimal edits to replace the removed text with the inserted one at the given offset.
+   */
+  private def replaceEdits(offset: Int, removed: String, inserted: String): List[Text.Edit] = {
+
+    val prefix = DiffUtils.longestCommonPrefix(removed, inserted)
+    // do not let the suffix overlap the prefix
+    val maxSuffix = math.min(removed.length, inserted.length) - prefix
+    val suffix = DiffUtils.longestCommonSuffix(removed, inserted, maxSuffix)
+
+    val removedMid = removed.substring(prefix, removed.length - suffix)
+    val insertedMid = inserted.substring(prefix, inserted.length - suffix)
+
+    val remove = if (removedMid.isEmpty) None else Some(Text.Edit.remove(offset + prefix, removedMid))
+    val insert = if (insertedMid.isEmpty) None else Some(Text.Edit.insert(offset + prefix, insertedMid))
+
+    remove.toList ::: insert.toList
+  }
+
 }
 
 class EditDocumentModel(val session: Session,
@@ -42,8 +140,10 @@ class EditDocumentModel(val session: Session,
   
   private var pendingPerspective = false
 
-  private def parseNodeHeader(): Document.Node.Header =
-    session.thy_load.check_thy_text(name, document.get)
+  /** Submits the edits of this document together with the edits of other open documents */
+  private val coordinator = SubmissionCoordinator(session)
+
+  private def parseNodeHeader(): Document.Node.Header = nodeHeader()
 
   /**
    * Indicate the document perspective: active portion of the document that should be processed
@@ -84,28 +184,23 @@ class EditDocumentModel(val session: Session,
     pendingEdits.flushDelayed()
   }
 
+  /** Statistics of submitting the edits to the prover */
+  def flushStats: FlushScheduler.Stats = coordinator.flushStats
+
   def submitFullPerspective(monitor: IProgressMonitor = new NullProgressMonitor) {
 
     // force flush current edits
     pendingEdits.doFlush(monitor)
     
     // submit the full perspective
-    lockSubmit(monitor) {
-      session.update(nodeEdits(Text.Perspective(List(documentRange)), Nil))
-    }
+    coordinator.submit(nodeEdits(Text.Perspective(List(documentRange)), Nil), monitor)
   }
 
   /**
    * Checks if the contents of this document have already been submitted as-is to the prover
    */
-  private def alreadySubmitted: Boolean = {
-    val submitted = snapshot
-    val submittedCmds = submitted.node.commands.toList
-    val submittedText = (submittedCmds map (_.source)).mkString
-    
-    // check if the submitted text is the same as the current one - then submitted as-is
-    submittedText == document.get
-  }
+  private def alreadySubmitted: Boolean =
+    EditDocumentModel.alreadySubmitted(snapshot.node, TextFingerprint(document), document.getLength)
 
   /* edits */
 
@@ -115,10 +210,9 @@ class EditDocumentModel(val session: Session,
     val text = document.get
     val perspective = currentPerspective
 
-    List(session.header_edit(name, header),
-      name -> Document.Node.Clear(),
-      name -> Document.Node.Edits(List(Text.Edit.insert(0, text))),
-      name -> Document.Node.Perspective(perspective))
+    nodeHeader.submitted = Some(header)
+
+    EditDocumentModel.initEdits(session, name, header, text, perspective)
   }
 
   private def nodeEdits(perspective: Text.Perspective,
@@ -126,35 +220,125 @@ class EditDocumentModel(val session: Session,
 
     val header = parseNodeHeader()
 
-    List(session.header_edit(name, header),
+    // only send the header if it has changed
+    val headerEdits: List[Document.Edit_Text] = if (nodeHeader.submitted == Some(header)) {
+      Nil
+    } else {
+      nodeHeader.submitted = Some(header)
+      List(session.header_edit(name, header))
+    }
+
+    headerEdits ::: List[Document.Edit_Text](
       name -> Document.Node.Edits(textEdits),
       name -> Document.Node.Perspective(perspective))
   }
+
+
+  /* theory header */
+
+  /**
+   * The parsed theory header, cached until the header text (up to `begin`) is edited.
+   */
+  private object nodeHeader {
+
+    /** The cached header with the end offset of its text, if still valid */
+    private var cached: Option[(Document.Node.Header, Int)] = None
+    /** Incremented on every invalidation, to avoid caching a header parsed from old text */
+    private var version = 0L
+
+    /** The header last submitted to the prover */
+    @volatile var submitted: Option[Document.Node.Header] = None
+
+    def apply(): Document.Node.Header = synchronized { cached } match {
+      case Some((header, _)) => header
+      case None => parse()
+    }
+
+    /** Invalidates the cached header if the document change at the offset touches it. */
+    def changed(offset: Int) = synchronized {
+      if (cached.forall { case (_, headerEnd) => offset <= headerEnd }) {
+        cached = None
+        version += 1
+      }
+    }
+
+    private def parse(): Document.Node.Header = {
+      val parseVersion = synchronized { version }
+
+      try {
+        val headerEnd = findHeaderEnd()
+        val header = session.thy_load.check_thy_text(name, document.get(0, headerEnd))
+
+        synchronized {
+          if (version == parseVersion) {
+            cached = Some((header, headerEnd))
+          }
+        }
+
+        header
+      } catch {
+        // the document has been changed concurrently - parse all of it without caching
+        case e: BadLocationException => session.thy_load.check_thy_text(name, document.get)
+      }
+    }
+
+    /**
+     * Finds the end of theory header text (after the `begin` keyword). Scans increasingly
+     * longer prefixes of the document, to avoid scanning all of it. If `begin` is not found,
+     * the whole document is treated as the header.
+     */
+    private def findHeaderEnd(): Int = {
+      val length = document.getLength
+      val syntax = session.recent_syntax
+
+      def beginEnd(scanLength: Int): Option[Int] = {
+        val tokens = syntax.scan(document.get(0, scanLength))
+        val tokenEnds = tokens.scanLeft(0)(_ + _.source.length).tail
+        val begins = (tokens zip tokenEnds) collect {
+          case (tok, end) if tok.source == "begin" && (tok.is_command || tok.is_keyword) => end
+        }
+
+        // ignore `begin` at the end of scanned text, since it may be a part of a longer word
+        begins.headOption.filter(end => end < scanLength || scanLength == length)
+      }
+
+      def find(scanLength: Int): Int = beginEnd(scanLength) match {
+        case Some(end) => end
+        case None if scanLength < length => find(math.min(scanLength * 2, length))
+        case None => length
+      }
+
+      find(math.min(EditDocumentModel.HEADER_SCAN_LENGTH, length))
+    }
+  }
   
   
   /* pending text edits */
 
   private object pendingEdits {
     
-    /** The pending edits (not yet submitted to the prover) */ 
-    private val pending = new ListBuffer[Text.Edit]
+    /** The pending edits (not yet submitted to the prover), merged where possible */ 
+    private val pending = new ArrayBuffer[Text.Edit]
     private var lastPerspective: Text.Perspective = Text.Perspective.empty
 
     // functional lock based on Java read/write lock
     private val lock = new ReentrantReadWriteLock()
     
-    
-    /** a job to perform edits in a separate (and delayed) thread */
-    private val flushJob = new PostponeJob("Sending Changes to Prover", doFlush) {
-      // set the submit rule
-      override def config(job: Job) = job.setRule(EditDocumentModel.serialSubmitRule)
-    }
+
+    /** The source of edits for the coordinator (kept as a value to unregister the same one) */
+    private val editSource = () => take()
     
     
     def snapshot(): List[Text.Edit] = lock.read{ pending.toList }
 
     /** Sends the pending edits to the prover without starting a separate job */
-    def doFlush(monitor: IProgressMonitor = new NullProgressMonitor) = {
+    def doFlush(monitor: IProgressMonitor = new NullProgressMonitor) = coordinator.flushNow(monitor)
+
+    /**
+     * Takes the pending edits for submission (called by the coordinator when flushing).
+     * The perspective is included if it has changed since the last submission.
+     */
+    private def take(): List[Document.Edit_Text] = {
       val edits = lock.write {
         // copy edits for processing and clear the pending list
         val edits = snapshot()
@@ -167,28 +351,25 @@ class EditDocumentModel(val session: Session,
 
       if (!edits.isEmpty || lastPerspective != newPerspective) {
         lastPerspective = newPerspective
-
-        lockSubmit(monitor) {
-          session.update(nodeEdits(newPerspective, edits))
-        }
+        nodeEdits(newPerspective, edits)
+      } else {
+        Nil
       }
-
-      Status.OK_STATUS
     }
 
-    def flush(delay: Long = 0) = flushJob.run(delay)
-    def flushDelayed() = flush(EditDocumentModel.flushDelay)
+    def flushDelayed() = coordinator.requestFlush()
 
     def +=(edit: Text.Edit) {
       
       lock.write {
-        pending += edit
+        EditDocumentModel.appendEdit(pending, edit)
       }
 
-      flushDelayed()
+      coordinator.edited()
     }
 
     def init() {
+      coordinator.register(editSource)
       doFlush()
       
       if (!alreadySubmitted) {
@@ -196,17 +377,13 @@ class EditDocumentModel(val session: Session,
 
         // need a lock on the document for initialisation? E.g. to avoid edits while initialising?
         // technically this should come from the SWT thread so should not be any need?
-        lockSubmit() {
-          session.update(initEdits())
-        }
+        coordinator.submit(initEdits())
       }
     }
 
     def exit() {
-      // cancel possibly delayed job
-      flushJob.cancel()
-      // force flush
-      doFlush()
+      // force flush of the remaining edits and stop submitting this document
+      coordinator.unregister(editSource)
     }
   }
   
@@ -242,6 +419,9 @@ class EditDocumentModel(val session: Session,
     }
 
     override def documentAboutToBeChanged(event: DocumentEvent) {
+      // the header needs parsing again if it gets changed
+      nodeHeader.changed(event.getOffset)
+
       // do the removals before the change
       if (event.getLength > 0) {
         
@@ -260,19 +440,4 @@ class EditDocumentModel(val session: Session,
       }
     }
   };
-
-  /** Locks the submit to Isabelle. This is used to wrap the submit to Isabelle
-    * into a scheduling rule, enforcing sequential submits. Since the rule can
-    * be nested, it will be ok if called from a flush job already.
-    */
-  private def lockSubmit(monitor: IProgressMonitor = new NullProgressMonitor)(f: => Unit) {
-
-    val jobs = Job.getJobManager
-
-    val submitRule = EditDocumentModel.serialSubmitRule
-    jobs.beginRule(submitRule, monitor)
-    f
-    jobs.endRule(submitRule)
-  }
-  
 }
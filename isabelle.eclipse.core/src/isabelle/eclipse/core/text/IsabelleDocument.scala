@@ -2,6 +2,7 @@ package isabelle.eclipse.core.text
 
 import scala.collection.mutable.WeakHashMap
 
+import org.eclipse.core.runtime.IProgressMonitor
 import org.eclipse.jface.text.{
   BadLocationException,
   Document,
@@ -13,7 +14,7 @@ import org.eclipse.jface.text.{
   Region
 }
 
-import isabelle.Symbol
+import isabelle.{Symbol, Text}
 import isabelle.eclipse.core.IsabelleCore
 
 
@@ -33,10 +34,13 @@ import isabelle.eclipse.core.IsabelleCore
   * e.g. edit Isabelle document both in editor that supports the Unicode symbols and a basic text
   * editor to show ASCII version.
   * 
-  * The synchronisation is performed on every change on any of the documents. We assume that
-  * encoding only affects words/symbols and the newlines match between both documents. Therefore
-  * during a document change we only need to analyse and transcode the affected lines. Then
-  * we use `diff` to identify the actual change as minimally as possible (see `syncEvent()`).  
+  * The synchronisation is performed on every change on any of the documents. A symbol-boundary
+  * map between the documents (see [[isabelle.eclipse.core.text.SymbolTranscoder]]) allows
+  * translating most changes directly: only the changed text is transcoded and replaced in the
+  * other document. For ambiguous changes (e.g. typing within a symbol), we assume that encoding
+  * only affects words/symbols and the newlines match between both documents. Therefore we only
+  * need to analyse and transcode the affected lines. Then we use `diff` to identify the actual
+  * change as minimally as possible (see `syncEvent()`).
   * 
   * @author Andrius Velykis
   */
@@ -51,12 +55,15 @@ class IsabelleDocument(val base: IDocument) extends Document {
   private val baseDoc = new UpdatingDocument(base)
   private val thisDoc = new UpdatingDocument(this)
 
+  // symbol map between the documents to transcode the changes incrementally
+  private val transcoder = new SymbolTranscoder
+
   // keep sync listeners after initialisation to disconnect when no longer used
   private val (baseListener, thisListener) = {
 
     // init listeners to keep the documents in sync
-    val baseListener = keepInSync(baseDoc, thisDoc, Symbol.decode)
-    val thisListener = keepInSync(thisDoc, baseDoc, Symbol.encode)
+    val baseListener = keepInSync(baseDoc, thisDoc, Symbol.decode, transcoder.decoding)
+    val thisListener = keepInSync(thisDoc, baseDoc, Symbol.encode, transcoder.encoding)
 
     // do initial sync from base to this (current document is empty)
     init()
@@ -75,7 +82,52 @@ class IsabelleDocument(val base: IDocument) extends Document {
    * Initialises Isabelle document contents by synchronising all text from the base document
    * and decoding symbols, if available.
    */
-  def init() = syncAll(baseDoc, thisDoc, Symbol.decode)
+  def init(): Unit = syncAll(baseDoc, thisDoc, transcoder.decoding)
+
+  /** Prepares bulk initialisation of the document for large texts: captures the base document
+    * text, which can then be decoded outside the UI thread via `BulkInit.decode()`. Apply the
+    * decoded text using `init(BulkInit)`.
+    */
+  def bulkInit(): BulkInit = new BulkInit(base.get, modificationStamp(base), transcoder.decoding)
+
+  /** Initialises Isabelle document contents with the text decoded in bulk. If the base document
+    * has changed since `bulkInit()` or the text has not been decoded, performs a full `init()`.
+    */
+  def init(bulk: BulkInit): Unit =
+    bulk.take() match {
+      case Some(decoded) if bulk.stamp != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP &&
+          bulk.stamp == modificationStamp(base) && IsabelleCore.isabelle.isInit =>
+        setAll(baseDoc, thisDoc, transcoder.decoding.transcodeAll(decoded))
+
+      case _ => init()
+    }
+
+
+  /** Translates the offset in this document to the matching offset in the base document.
+    * If the offset is within a symbol, the start of the symbol is used.
+    */
+  def toBaseOffset(offset: Int): Int = transcoder.encoding.offset(offset)
+
+  /** Translates the offset in the base document to the matching offset in this document.
+    * If the offset is within a symbol, the start of the symbol is used.
+    */
+  def fromBaseOffset(baseOffset: Int): Int = transcoder.decoding.offset(baseOffset)
+
+  /** Translates the range in this document to the matching range in the base document.
+    * The range is extended to whole symbols at its ends.
+    */
+  def toBaseRange(range: Text.Range): Text.Range = {
+    val (start, stop) = transcoder.encoding.range(range.start, range.stop)
+    Text.Range(start, stop)
+  }
+
+  /** Translates the range in the base document to the matching range in this document.
+    * The range is extended to whole symbols at its ends.
+    */
+  def fromBaseRange(baseRange: Text.Range): Text.Range = {
+    val (start, stop) = transcoder.decoding.range(baseRange.start, baseRange.stop)
+    Text.Range(start, stop)
+  }
 
 }
 
@@ -84,15 +136,50 @@ object IsabelleDocument {
   /** Wrap a document with a flag that it is being updated by us. */
   private class UpdatingDocument(val document: IDocument) { var updating = false }
 
+  /** Base document text captured for bulk decoding (see `IsabelleDocument.bulkInit()`). */
+  class BulkInit private[IsabelleDocument] (text: String, val stamp: Long,
+      decoding: SymbolTranscoder#Direction) {
+
+    @volatile private var decoded: Option[SymbolTranscoder.Transcoded] = None
+
+    /** Decodes the captured text in parallel chunks. Can be called from any thread.
+      *
+      * @return  `false` if cancelled via the monitor
+      */
+    def decode(monitor: IProgressMonitor): Boolean =
+      if (IsabelleCore.isabelle.isInit) {
+        decoded = decoding.transcodeBulk(text, monitor)
+        decoded.isDefined
+      } else {
+        // nothing to decode - full init will be performed
+        true
+      }
+
+    private[IsabelleDocument] def take(): Option[SymbolTranscoder.Transcoded] = {
+      val result = decoded
+      decoded = None
+      result
+    }
+  }
+
+  /** Length of the inserted text of the event (the text is `null` for pure deletions) */
+  private def textLength(event: DocumentEvent): Int = Option(event.getText).map(_.length).getOrElse(0)
+
+  private def modificationStamp(document: IDocument): Long = document match {
+    case doc: IDocumentExtension4 => doc.getModificationStamp
+    case _ => IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP
+  }
+
   /** Attaches a listener on the `from` document to transcode and sync the changes to the `to` document. */
-  private def keepInSync(from: UpdatingDocument, to: UpdatingDocument, transcode: String => String): IDocumentListener = {
+  private def keepInSync(from: UpdatingDocument, to: UpdatingDocument, transcode: String => String,
+      transcoding: SymbolTranscoder#Direction): IDocumentListener = {
     // attach a listener to 'from' document and sync to 'to' document when it changes
     val syncListener = lineListener { (event, originalEndLine) =>
       {
         // check if document is being updated by us, then do not react to changes
         if (!from.updating) {
           // synchronise the event changes
-          syncEvent(from, to, transcode, event, originalEndLine)
+          syncEvent(from, to, transcode, transcoding, event, originalEndLine)
         }
       }
     }
@@ -123,17 +210,25 @@ object IsabelleDocument {
   /** Transcodes all the text from the `from` document to the `to` document.
     * No diff is performed because all text is replaced. 
     */
-  private def syncAll(from: UpdatingDocument, to: UpdatingDocument, transcode: String => String) = {
+  private def syncAll(from: UpdatingDocument, to: UpdatingDocument,
+      transcoding: SymbolTranscoder#Direction) = {
 
     val text = from.document.get()
 
     val isabelle = IsabelleCore.isabelle
     val transcoded = if (isabelle.isInit) {
-      transcode(text)
+      // transcode and record the symbols for incremental sync
+      transcoding.transcodeAll(text)
     } else {
+      transcoding.invalidate()
       text
     }
 
+    setAll(from, to, transcoded)
+  }
+
+  /** Replaces all the text in the `to` document, keeping the modification stamp of `from`. */
+  private def setAll(from: UpdatingDocument, to: UpdatingDocument, transcoded: String) {
     to.updating = true
     (to.document, from.document) match {
       // for modern documents, set the same modification stamp as the original
@@ -144,39 +239,26 @@ object IsabelleDocument {
     to.updating = false
   }
   
-  /** Transcodes the affected text as indicated by the document event. Isolates the affected lines
-    * and performs `diff` to capture word-level (sometimes even symbol-level) changes.
+  /** Transcodes the affected text as indicated by the document event. Tries translating the change
+    * directly using the symbol map. If that is ambiguous, isolates the affected lines and performs
+    * `diff` to capture word-level (sometimes even symbol-level) changes.
     */
   private def syncEvent(from: UpdatingDocument, to: UpdatingDocument, transcode: String => String,
-      event: DocumentEvent, originalFromEndLine: Option[Int]) {
+      transcoding: SymbolTranscoder#Direction, event: DocumentEvent, originalFromEndLine: Option[Int]) {
 
     val isabelle = IsabelleCore.isabelle
     // check if Isabelle is initialised, otherwise we do not have access to symbol encodings
     val edit = if (isabelle.isInit) {
       
-      // Find the regions in both documents affected by the document change event.
-      // We assume that symbol encodings do not span multiple lines. Therefore we find the lines
-      // affected by the document event and retrieve all the text in those lines.
-      // This way we minimise the text we need to diff, which is a bit more expensive operation.
-      val (fromRegion, toRegion) = affectedRegions(from.document, to.document, event, originalFromEndLine)
-      
-      // get the affected texts
-      def text(doc: IDocument, region: IRegion) = doc.get(region.getOffset, region.getLength)
-      val fromText = text(from.document, fromRegion)
-      val toText = text(to.document, toRegion)
-      
-      // transcode the text in original document
-      val transcoded = transcode(fromText)
-      
-      // compare the transcoded text with what is already in the target document - find the differences
-      val diff = minContiguousDiff(toText, transcoded)
-      
-      // adapt the differences to the absolute offset (they are 0-based from the `toText`)
-      diff map {
-        case (offset, length, replaceText) => (toRegion.getOffset + offset, length, replaceText)
+      transcoding.edit(event) match {
+        case Some(SymbolTranscoder.Edit(offset, length, text)) =>
+          if (length > 0 || !text.isEmpty) Some((offset, length, text)) else None
+
+        case None => syncLines(from, to, transcode, transcoding, event, originalFromEndLine)
       }
     } else {
       // Isabelle not initialised, so no transcoding is done - just forward the original text replacement
+      transcoding.invalidate()
       Some((event.getOffset, event.getLength, event.getText))
     }
     
@@ -192,12 +274,47 @@ object IsabelleDocument {
     to.updating = false
   }
 
+  /** Transcodes the lines affected by the document event, and finds the actual change using
+    * `diff`. Realigns the symbol map for the affected lines afterwards.
+    */
+  private def syncLines(from: UpdatingDocument, to: UpdatingDocument, transcode: String => String,
+      transcoding: SymbolTranscoder#Direction, event: DocumentEvent,
+      originalFromEndLine: Option[Int]): Option[(Int, Int, String)] = {
+
+    // Find the regions in both documents affected by the document change event.
+    // We assume that symbol encodings do not span multiple lines. Therefore we find the lines
+    // affected by the document event and retrieve all the text in those lines.
+    // This way we minimise the text we need to diff, which is a bit more expensive operation.
+    val (fromRegion, toRegion) = affectedRegions(from.document, to.document, event, originalFromEndLine)
+    
+    // get the affected texts
+    def text(doc: IDocument, region: IRegion) = doc.get(region.getOffset, region.getLength)
+    val fromText = text(from.document, fromRegion)
+    val toText = text(to.document, toRegion)
+    
+    // transcode the text in original document
+    val transcoded = transcode(fromText)
+    
+    // compare the transcoded text with what is already in the target document - find the differences
+    val diff = minContiguousDiff(toText, transcoded)
+    
+    // after the change, the affected lines in the target document will contain the transcoded
+    // text, so realign the symbol map for them
+    val fromLength = fromRegion.getLength - (textLength(event) - event.getLength)
+    transcoding.realign(fromRegion.getOffset, fromLength, fromText, transcoded)
+
+    // adapt the differences to the absolute offset (they are 0-based from the `toText`)
+    diff map {
+      case (offset, length, replaceText) => (toRegion.getOffset + offset, length, replaceText)
+    }
+  }
+
   private def affectedRegions(from: IDocument, to: IDocument,
       event: DocumentEvent, originalFromEndLine: Option[Int]): (IRegion, IRegion) = {
 
     // get the start/end lines for the 'from' document (after the event changes)
     val fromStartLine = badLoc { from.getLineOfOffset(event.getOffset) }
-    val fromEndLine = badLoc { from.getLineOfOffset(event.getOffset + event.getText.length) }
+    val fromEndLine = badLoc { from.getLineOfOffset(event.getOffset + textLength(event)) }
 
     // get the offset of start line in both 'from' and 'to' documents
     val fromStartOpt = fromStartLine.flatMap(lineStart(from, _))
@@ -0,0 +1,169 @@
+package isabelle.eclipse.core.text
+
+import scala.actors.Actor._
+import scala.collection.mutable.{HashMap, LinkedHashSet}
+
+import org.eclipse.core.runtime.{IProgressMonitor, IStatus, NullProgressMonitor, Status}
+import org.eclipse.core.runtime.jobs.Job
+
+import isabelle.{Document, Session}
+import isabelle.eclipse.core.IsabelleCore
+import isabelle.eclipse.core.app.Isabelle
+import isabelle.eclipse.core.util.{FlushScheduler, LoggingActor}
+
+
+/**
+ * Coordinates submission of document edits to the prover for all edit models of a session.
+ *
+ * Instead of each document model submitting its edits separately, the coordinator collects
+ * the pending edits and perspectives from all registered models within one flush window,
+ * and sends them in a single `session.update()`. This way the prover assigns a single new
+ * document version for changes in multiple documents (e.g. search-and-replace across theories).
+ *
+ * @author Andrius Velykis
+ */
+class SubmissionCoordinator private (val session: Session) {
+
+  /** A source of pending edits to submit, e.g. a document model */
+  type EditSource = () => List[Document.Edit_Text]
+
+  private val sources = LinkedHashSet[EditSource]()
+
+  /** a job to submit edits in a separate (and delayed) thread, adapting to the typing rate
+    * and to the prover latency (measured until the submitted version is assigned)
+    */
+  private val flushJob = new FlushScheduler("Sending Changes to Prover",
+    EditDocumentModel.serialSubmitRule, awaitAck = true)(submitAll)
+
+  /** Acknowledges the flushes once the prover has assigned the latest submitted version */
+  private val assignmentListener = LoggingActor {
+    loop {
+      react {
+        case changed: Session.Commands_Changed =>
+          if (changed.assignment && session.current_state().tip_stable) {
+            flushJob.acknowledge()
+          }
+        case _ =>
+      }
+    }
+  }
+
+  session.commands_changed += assignmentListener
+
+
+  /** Registers the source of pending edits, which will be queried on every flush. */
+  def register(source: EditSource) = sources.synchronized { sources += source }
+
+  /** Unregisters the source of pending edits, flushing its remaining edits first. */
+  def unregister(source: EditSource) {
+    flushNow()
+
+    val empty = sources.synchronized {
+      sources -= source
+      sources.isEmpty
+    }
+
+    if (empty) {
+      // nothing more to flush
+      flushJob.cancel()
+    }
+  }
+
+  /** Records a new edit and schedules a flush for all sources. */
+  def edited() = flushJob.edited()
+
+  /** Requests a flush without a new edit (e.g. after perspective change). */
+  def requestFlush() = flushJob.requestFlush()
+
+  /** Stops submitting edits, e.g. when the session is shut down. */
+  private def dispose() {
+    session.commands_changed -= assignmentListener
+    sources.synchronized { sources.clear() }
+    flushJob.cancel()
+  }
+
+  /** Submits the pending edits of all sources immediately. */
+  def flushNow(monitor: IProgressMonitor = new NullProgressMonitor) = flushJob.flushNow(monitor)
+
+  /**
+   * Submits the given edits immediately, together with the pending edits of all sources.
+   * The pending edits go first to keep the submitted edits in order.
+   */
+  def submit(edits: List[Document.Edit_Text],
+             monitor: IProgressMonitor = new NullProgressMonitor) {
+    lockSubmit(monitor) {
+      update(pendingEdits() ::: edits)
+    }
+  }
+
+  /** Statistics of submitting the edits to the prover */
+  def flushStats: FlushScheduler.Stats = flushJob.stats
+
+
+  private def pendingEdits(): List[Document.Edit_Text] = {
+    val allSources = sources.synchronized { sources.toList }
+    allSources flatMap (source => source())
+  }
+
+  private def submitAll(monitor: IProgressMonitor): IStatus = {
+    lockSubmit(monitor) {
+      update(pendingEdits())
+    }
+
+    Status.OK_STATUS
+  }
+
+  private def update(edits: List[Document.Edit_Text]) =
+    if (!edits.isEmpty) {
+      session.update(edits)
+    }
+
+  /** Locks the submit to Isabelle. This is used to wrap the submit to Isabelle
+    * into a scheduling rule, enforcing sequential submits. Since the rule can
+    * be nested, it will be ok if called from a flush job already.
+    */
+  private def lockSubmit(monitor: IProgressMonitor)(f: => Unit) {
+
+    val jobs = Job.getJobManager
+
+    val submitRule = EditDocumentModel.serialSubmitRule
+    jobs.beginRule(submitRule, monitor)
+    try {
+      f
+    } finally {
+      jobs.endRule(submitRule)
+    }
+  }
+
+}
+
+object SubmissionCoordinator {
+
+  // The coordinators reference their sessions (and pending edits), so they are
+  // removed explicitly upon session shutdown.
+  private val coordinators = HashMap[Session, SubmissionCoordinator]()
+
+  private val shutdownListener = LoggingActor {
+    loop {
+      react {
+        case Isabelle.SessionShutdown(session) => remove(session)
+        case _ =>
+      }
+    }
+  }
+
+  // attach the shutdown listener on first use
+  private lazy val listenShutdown = IsabelleCore.isabelle.systemEvents += shutdownListener
+
+  /** Retrieves the submission coordinator for the given session. */
+  def apply(session: Session): SubmissionCoordinator = coordinators.synchronized {
+    listenShutdown
+    coordinators.getOrElseUpdate(session, new SubmissionCoordinator(session))
+  }
+
+  private def remove(session: Session) {
+    val removed = coordinators.synchronized { coordinators.remove(session) }
+    removed foreach (_.dispose())
+  }
+
+}
@@ -0,0 +1,581 @@
+package isabelle.eclipse.core.text
+
+import scala.collection.mutable
+import scala.concurrent.{Await, Future}
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration.Duration
+
+import org.eclipse.core.runtime.IProgressMonitor
+import org.eclipse.jface.text.{BadLocationException, DocumentEvent, IDocument}
+
+import isabelle.Symbol
+
+
+/** A symbol-boundary map between the ASCII (encoded) and the Unicode (decoded) versions of
+  * Isabelle document text. It allows transcoding document changes incrementally.
+  *
+  * The map records every segment where the two texts differ, e.g. `\<forall>` in the ASCII text
+  * and `∀` in the Unicode one. Everything between the segments is the same in both texts.
+  * Knowing the segments, a change in one document can be translated into the matching change
+  * in the other document directly: only the changed text is transcoded, and the change offsets
+  * are moved to account for the symbols before them. No re-transcoding of whole lines and no
+  * `diff` is needed.
+  *
+  * Some changes are ambiguous, e.g. when they cut through a symbol, or when the typed characters
+  * can form a new symbol together with the surrounding text (e.g. typing `>` after `\<forall`).
+  * For these, the transcoding directions return `None` and the caller should transcode the
+  * change in some other way, e.g. via `diff` of the affected lines, and then `realign` the map.
+  *
+  * @author Andrius Velykis
+  */
+class SymbolTranscoder {
+
+  import SymbolTranscoder._
+
+  /** The segments where the encoded and decoded texts differ */
+  private val segments = new Segments
+
+  /** Indicates whether the map corresponds to the current document texts. If the map cannot
+    * be kept in sync (e.g. failed to realign), all changes are treated as ambiguous until
+    * the next full transcoding.
+    */
+  private var valid = false
+
+  /** Marks the map as not corresponding to the document texts. */
+  def invalidate() {
+    segments.clear()
+    valid = false
+  }
+
+
+  /** Transcoding from the ASCII (encoded) to the Unicode (decoded) document. */
+  val decoding: Direction = new Direction(ENCODED) {
+
+    override protected def transcodeSymbol(sym: String) = Symbol.decode(sym)
+
+    // only `\<...>` symbols get decoded
+    override protected def transcodable(sym: String) = sym.length > 1 && sym.charAt(0) == '\\'
+
+    override protected def joinsAt(document: IDocument, offset: Int) =
+      unfinishedSymbol(document, offset)
+  }
+
+  /** Transcoding from the Unicode (decoded) to the ASCII (encoded) document. */
+  val encoding: Direction = new Direction(DECODED) {
+
+    override protected def transcodeSymbol(sym: String) = Symbol.encode(sym)
+
+    // only non-ASCII symbols get encoded
+    override protected def transcodable(sym: String) = sym.charAt(0) >= 0x80
+
+    override protected def joinsAt(document: IDocument, offset: Int) =
+      splitSurrogate(document, offset)
+  }
+
+
+  /** Translates offset in `src` text to the offset in the other text. Returns `None` if the
+    * offset is within a segment (i.e. cuts a symbol).
+    */
+  private def translate(offset: Int, src: Int): Option[Int] = {
+    val translated = segments.translate(src, offset, INSIDE_NONE)
+    if (translated < 0) None else Some(translated)
+  }
+
+  /** Translates the range in `src` text to the range in the other text. If the range ends are
+    * within symbols, the range is extended to include the whole symbols.
+    *
+    * If the map is not valid, the texts are assumed to be the same.
+    */
+  private def translateRange(start: Int, stop: Int, src: Int): (Int, Int) =
+    if (!valid) {
+      (start, stop)
+    } else {
+      (segments.translate(src, start, INSIDE_START), segments.translate(src, stop, INSIDE_END))
+    }
+
+
+  /** Transcoding of changes in one direction, e.g. from the encoded to the decoded text.
+    *
+    * @param src  side of the segments that are changed in the source document
+    *             (the target document is the other side)
+    */
+  abstract class Direction private[SymbolTranscoder] (src: Int) {
+
+    /** Transcodes a single symbol */
+    protected def transcodeSymbol(sym: String): String
+
+    /** Checks whether the symbol can be changed by transcoding */
+    protected def transcodable(sym: String): Boolean
+
+    /** Checks whether the source document text at the offset can be joined into a single symbol
+      * (i.e. the transcoding of text before and after the offset cannot be done separately).
+      */
+    protected def joinsAt(document: IDocument, offset: Int): Boolean
+
+    /** Translates the offset in the source text to the offset in the target text. If the offset
+      * is within a symbol, the start of the symbol is used.
+      */
+    def offset(srcOffset: Int): Int = translateRange(srcOffset, srcOffset, src)._1
+
+    /** Translates the range in the source text to the range in the target text. If the range
+      * ends are within symbols, the range is extended to include the whole symbols.
+      */
+    def range(srcStart: Int, srcStop: Int): (Int, Int) = translateRange(srcStart, srcStop, src)
+
+    /** Symbol transcoding cache (the symbols repeat a lot in the text) */
+    private val cache = mutable.Map[String, String]()
+
+    private def transcode(sym: String, cache: mutable.Map[String, String] = this.cache): String =
+      if (transcodable(sym)) cache.getOrElseUpdate(sym, transcodeSymbol(sym)) else sym
+
+    /** Transcodes the text symbol-by-symbol and records the changed segments
+      * (relative to the start of the text).
+      */
+    private def transcodeText(text: String, out: Segments,
+                              cache: mutable.Map[String, String] = this.cache): String = {
+
+      val result = new StringBuilder(text.length)
+      var srcPos = 0
+
+      Symbol.iterator(text) foreach { sym =>
+        val transcoded = transcode(sym, cache)
+        if (transcoded != sym) {
+          out.add(src, srcPos, sym.length, transcoded.length)
+        }
+
+        result.append(transcoded)
+        srcPos += sym.length
+      }
+
+      result.toString
+    }
+
+
+    /** Transcodes the full text and resets the map to its symbols. */
+    def transcodeAll(text: String): String = {
+      // the symbols may have changed upon reinitialisation
+      cache.clear()
+      segments.clear()
+
+      val transcoded = transcodeText(text, segments)
+      valid = true
+
+      transcoded
+    }
+
+    /** Resets the map to the symbols of full text transcoded via `transcodeBulk()`.
+      * The result can only be applied once.
+      */
+    def transcodeAll(bulk: Transcoded): String = {
+      // the symbols may have changed upon reinitialisation
+      cache.clear()
+      segments.clear()
+
+      segments.append(src, 0, bulk.segments)
+      valid = true
+
+      bulk.text
+    }
+
+    /** Transcodes the full text in chunks (split at line boundaries), which are processed
+      * in parallel. The map is not changed, so this can be called from any thread. Use
+      * `transcodeAll(Transcoded)` to apply the result.
+      *
+      * @return  the transcoded text, or `None` if cancelled via the monitor
+      */
+    def transcodeBulk(text: String, monitor: IProgressMonitor): Option[Transcoded] = {
+
+      val chunks = lineChunks(text)
+      monitor.beginTask("Transcoding Isabelle symbols", chunks.size)
+
+      def transcodeChunk(start: Int, end: Int): Option[(String, Segments)] =
+        if (monitor.isCanceled) {
+          None
+        } else {
+          // use separate caches for concurrent chunks
+          val out = new Segments
+          val transcoded = transcodeText(text.substring(start, end), out, mutable.Map())
+          Some((transcoded, out))
+        }
+
+      val results = chunks match {
+        case List((start, end)) => List(() => transcodeChunk(start, end))
+        case _ => chunks map { case (start, end) =>
+          val task = Future { transcodeChunk(start, end) }
+          () => Await.result(task, Duration.Inf)
+        }
+      }
+
+      // collect the chunks in order
+      val transcoded = new StringBuilder(text.length)
+      val bulkSegments = new Segments
+
+      val allDone = (chunks zip results) forall { case ((start, _), result) =>
+        result() match {
+          case Some((chunkText, chunkSegments)) if !monitor.isCanceled => {
+            bulkSegments.append(src, start, chunkSegments)
+            transcoded.append(chunkText)
+            monitor.worked(1)
+            true
+          }
+          case _ => false
+        }
+      }
+
+      monitor.done()
+
+      if (allDone) Some(new Transcoded(transcoded.toString, bulkSegments)) else None
+    }
+
+
+    /** Translates the change in the source document to the matching change in the target
+      * document. The map is updated to reflect both documents after the change, so the caller
+      * is expected to apply the returned edit.
+      *
+      * Must be called after the change has been applied to the source document.
+      *
+      * @return  the edit for the target document, or `None` if the change is ambiguous and
+      *          cannot be transcoded directly
+      */
+    def edit(event: DocumentEvent): Option[Edit] = if (!valid) None else {
+
+      val document = event.getDocument
+      val offset = event.getOffset
+      val end = offset + event.getLength
+      val text = Option(event.getText) getOrElse ""
+
+      // the change must not cut through the existing symbols,
+      // and the new text must not form new symbols with the surrounding text
+      val dstRange = for {
+        dstStart <- translate(offset, src)
+        dstEnd <- translate(end, src)
+        if !joinsAt(document, offset) && !joinsAt(document, offset + text.length)
+      } yield (dstStart, dstEnd)
+
+      dstRange map { case (dstStart, dstEnd) =>
+
+        val inserted = new Segments
+        val transcoded = transcodeText(text, inserted)
+
+        segments.replace(src, offset, end, inserted, text.length)
+
+        Edit(dstStart, dstEnd - dstStart, transcoded)
+      }
+    }
+
+
+    /** Realigns the map after a change was transcoded in some other way (e.g. via `diff`).
+      *
+      * The map is rebuilt for the given regions by matching the source text symbols with
+      * the target text. If they cannot be matched, the map is invalidated.
+      *
+      * @param srcOffset  start of the changed region in the source document
+      * @param srcLength  length of the region in the source document before the change
+      * @param srcText    text of the region in the source document after the change
+      * @param dstText    text of the matching region in the target document after the change
+      */
+    def realign(srcOffset: Int, srcLength: Int, srcText: String, dstText: String) = if (valid) {
+
+      val aligned = new Segments
+      if (align(srcText, dstText, aligned)) {
+        segments.replace(src, srcOffset, srcOffset + srcLength, aligned, srcText.length)
+      } else {
+        invalidate()
+      }
+    }
+
+    /** Matches the source text symbols with the target text, recording the transcoded ones
+      * (relative to the start of the texts).
+      */
+    private def align(srcText: String, dstText: String, out: Segments): Boolean = {
+
+      var srcPos = 0
+      var dstPos = 0
+
+      val syms = Symbol.iterator(srcText)
+      var aligned = true
+      while (aligned && syms.hasNext) {
+        val sym = syms.next
+        val transcoded = transcode(sym)
+
+        if (transcoded != sym && dstText.startsWith(transcoded, dstPos)) {
+          out.add(src, srcPos, sym.length, transcoded.length)
+          dstPos += transcoded.length
+        } else if (dstText.startsWith(sym, dstPos)) {
+          // the symbol is kept as-is in the target text
+          dstPos += sym.length
+        } else {
+          aligned = false
+        }
+
+        srcPos += sym.length
+      }
+
+      aligned && dstPos == dstText.length
+    }
+
+    def invalidate() = SymbolTranscoder.this.invalidate()
+  }
+
+}
+
+object SymbolTranscoder {
+
+  /** A replacement edit: `length` characters at `offset` are replaced with `text`. */
+  case class Edit(offset: Int, length: Int, text: String)
+
+  /** Text transcoded in bulk, together with its symbol segments. */
+  class Transcoded private[SymbolTranscoder] (val text: String,
+                                              private[SymbolTranscoder] val segments: Segments)
+
+
+  // sides of the segments
+  private val ENCODED = 0
+  private val DECODED = 1
+
+  /** Maximum number of characters to look back for a start of ASCII symbol */
+  private val MAX_SYMBOL_SCAN = 64
+
+  /** Minimum size of text chunks for bulk transcoding */
+  private val CHUNK_SIZE = 64 * 1024
+
+
+  /** Splits the text into chunks of at least `CHUNK_SIZE` at line boundaries.
+    * Symbols do not span multiple lines, so the chunks can be transcoded separately.
+    *
+    * @return  list of chunks as (start, end) offsets
+    */
+  private def lineChunks(text: String): List[(Int, Int)] = {
+    val chunks = mutable.ListBuffer[(Int, Int)]()
+
+    var start = 0
+    while (start < text.length) {
+      val lineEnd = text.indexOf('\n', start + CHUNK_SIZE)
+      val end = if (lineEnd < 0) text.length else lineEnd + 1
+      chunks += ((start, end))
+      start = end
+    }
+
+    if (chunks.isEmpty) List((0, 0)) else chunks.toList
+  }
+
+
+  /** Checks whether the offset in the ASCII document can be within an unfinished symbol, e.g.
+    * `\<for|` - the text after the offset could complete it.
+    *
+    * Looks back for the symbol start `\`, stopping at symbol end `>` or at whitespace
+    * (we ignore raw symbols, which can contain spaces).
+    */
+  private def unfinishedSymbol(document: IDocument, offset: Int): Boolean =
+    try {
+      val stop = math.max(offset - MAX_SYMBOL_SCAN, 0)
+      var i = offset - 1
+      var result: Option[Boolean] = None
+      while (result.isEmpty && i >= stop) {
+        val c = document.getChar(i)
+        if (c == '\\') result = Some(true)
+        else if (c == '>' || Character.isWhitespace(c)) result = Some(false)
+        i -= 1
+      }
+
+      // if scanned too far without finding the start/end of symbol, assume the worst
+      result getOrElse (stop > 0)
+    } catch {
+      case e: BadLocationException => true
+    }
+
+  /** Checks whether the offset in the Unicode document is between a surrogate pair. */
+  private def splitSurrogate(document: IDocument, offset: Int): Boolean =
+    try {
+      offset > 0 && offset < document.getLength &&
+        Character.isHighSurrogate(document.getChar(offset - 1)) &&
+        Character.isLowSurrogate(document.getChar(offset))
+    } catch {
+      case e: BadLocationException => true
+    }
+
+
+  // handling of offsets within segments when translating
+  private val INSIDE_NONE = 0
+  private val INSIDE_START = 1
+  private val INSIDE_END = 2
+
+  /** A segment in the tree, with its length in both texts. The `gap` is the length of
+    * the unchanged text (same in both texts) between the previous segment and this one.
+    *
+    * The sums are the lengths of all text (segments and gaps) in the node's subtree.
+    */
+  private class Node(var gap: Int, encodedLength: Int, decodedLength: Int) {
+    val length = Array(encodedLength, decodedLength)
+    val sum = new Array[Int](2)
+    val priority = random.nextInt()
+    var left: Node = null
+    var right: Node = null
+
+    update()
+
+    def update() = for (side <- 0 to 1) {
+      sum(side) = sumOf(left, side) + gap + length(side) + sumOf(right, side)
+    }
+  }
+
+  private val random = new java.util.Random
+
+  private def sumOf(node: Node, side: Int) = if (node == null) 0 else node.sum(side)
+
+
+  /** An ordered list of segments where the encoded and decoded texts differ, stored as a treap
+    * (a randomised balanced binary tree). Each segment is stored relative to the previous one,
+    * so translating offsets and replacing segments take O(log n) time, without shifting all
+    * subsequent segments on every change.
+    *
+    * Offsets in the list are relative to its start. The text after the last segment is the same
+    * in both texts and is not recorded.
+    */
+  private class Segments {
+
+    private var root: Node = null
+
+    def clear() = root = null
+
+    /** Appends all the segments of `other` list, which starts at `start` in `side` text.
+      * The `other` list is cleared afterwards.
+      */
+    def append(side: Int, start: Int, other: Segments) {
+      root = merge(root, addToFirstGap(other.root, start - sumOf(root, side)))
+      other.clear()
+    }
+
+    /** Appends a segment, given its start/length in `side` text and its length in the other
+      * text. The segment must start after the end of the previous segment.
+      */
+    def add(side: Int, start: Int, length: Int, otherLength: Int) {
+      val gap = start - sumOf(root, side)
+      val node = if (side == ENCODED) new Node(gap, length, otherLength)
+                 else new Node(gap, otherLength, length)
+      root = merge(root, node)
+    }
+
+    /** Translates the offset in `side` text to the offset in the other text.
+      *
+      * If the offset is within a segment, the result is determined by the `inside` parameter:
+      * the start or the end of the segment in the other text, or -1 if `INSIDE_NONE`.
+      */
+    def translate(side: Int, offset: Int, inside: Int): Int = {
+      val other = 1 - side
+
+      var node = root
+      var sideStart = 0
+      var otherStart = 0
+      var result: Option[Int] = None
+
+      while (result.isEmpty) {
+        if (node == null) {
+          // after all segments: the text is the same
+          result = Some(otherStart + (offset - sideStart))
+        } else {
+          val leftEnd = sideStart + sumOf(node.left, side)
+          val segStart = leftEnd + node.gap
+          val segEnd = segStart + node.length(side)
+          val otherSegStart = otherStart + sumOf(node.left, other) + node.gap
+
+          if (offset < leftEnd) {
+            node = node.left
+          } else if (offset <= segStart) {
+            // within the gap before the segment
+            result = Some(otherSegStart - (segStart - offset))
+          } else if (offset < segEnd) {
+            result = Some(inside match {
+              case INSIDE_START => otherSegStart
+              case INSIDE_END => otherSegStart + node.length(other)
+              case _ => -1
+            })
+          } else {
+            sideStart = segEnd
+            otherStart = otherSegStart + node.length(other)
+            node = node.right
+          }
+        }
+      }
+
+      result.get
+    }
+
+    /** Replaces the segments within [from, to) in `side` text with the given ones. The offsets
+      * must not be within the existing segments.
+      *
+      * @param inserted  the new segments (relative to `from`)
+      * @param length    length of the replacement text in `side` text
+      */
+    def replace(side: Int, from: Int, to: Int, inserted: Segments, length: Int) {
+
+      val (before, rest) = split(root, side, from)
+      val (_, after) = split(rest, side, to - from)
+
+      // the text between the last segment of `before` and `from`
+      val beforeGap = from - sumOf(before, side)
+      // the text between the last inserted segment and the end of the replacement text
+      val insertedGap = length - sumOf(inserted.root, side)
+
+      val tail = addToFirstGap(after, insertedGap)
+      root = merge(before, addToFirstGap(merge(inserted.root, tail), beforeGap))
+
+      inserted.clear()
+    }
+
+    /** Splits the tree into segments ending before or at the offset, and the ones after it.
+      * The segments after are made relative to the offset.
+      */
+    private def split(node: Node, side: Int, offset: Int): (Node, Node) =
+      if (node == null) {
+        (null, null)
+      } else {
+        val leftSum = sumOf(node.left, side)
+        val segEnd = leftSum + node.gap + node.length(side)
+
+        if (segEnd <= offset) {
+          val (left, right) = split(node.right, side, offset - segEnd)
+          node.right = left
+          node.update()
+          (node, right)
+        } else {
+          val (left, right) = split(node.left, side, offset)
+          if (right == null) {
+            // this node is the first after the offset
+            node.gap = leftSum + node.gap - offset
+          }
+          node.left = right
+          node.update()
+          (left, node)
+        }
+      }
+
+    private def merge(left: Node, right: Node): Node =
+      if (left == null) {
+        right
+      } else if (right == null) {
+        left
+      } else if (left.priority > right.priority) {
+        left.right = merge(left.right, right)
+        left.update()
+        left
+      } else {
+        right.left = merge(left, right.left)
+        right.update()
+        right
+      }
+
+    private def addToFirstGap(node: Node, delta: Int): Node = {
+      if (node != null && delta != 0) {
+        if (node.left == null) {
+          node.gap += delta
+        } else {
+          addToFirstGap(node.left, delta)
+        }
+        node.update()
+      }
+      node
+    }
+  }
+
+}
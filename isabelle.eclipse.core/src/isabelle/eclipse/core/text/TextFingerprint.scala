@@ -0,0 +1,117 @@
+package isabelle.eclipse.core.text
+
+import scala.collection.mutable.WeakHashMap
+
+import org.eclipse.jface.text.IDocument
+
+import isabelle.{Command, Document}
+
+
+/** A content fingerprint of text: its length and polynomial hashes.
+  *
+  * The fingerprint of concatenated texts can be calculated from the fingerprints of the parts
+  * (see `++`). This allows fingerprinting Isabelle document nodes from the (cached) fingerprints
+  * of their commands, without building the full node text.
+  *
+  * Two different hashes are used to make accidental collisions unlikely.
+  *
+  * @author Andrius Velykis
+  */
+final class TextFingerprint private (val length: Int,
+                                     private val hash1: Long,
+                                     private val hash2: Long,
+                                     private val power1: Long,
+                                     private val power2: Long) {
+
+  import TextFingerprint._
+
+  /** Fingerprint of this text followed by the `other` text */
+  def ++(other: TextFingerprint): TextFingerprint =
+    new TextFingerprint(length + other.length,
+      (hash1 * other.power1 + other.hash1) % MODULUS,
+      (hash2 * other.power2 + other.hash2) % MODULUS,
+      (power1 * other.power1) % MODULUS,
+      (power2 * other.power2) % MODULUS)
+
+  override def equals(other: Any) = other match {
+    case that: TextFingerprint => length == that.length && hash1 == that.hash1 && hash2 == that.hash2
+    case _ => false
+  }
+
+  override def hashCode = (hash1 ^ (hash2 << 31)).toInt
+
+  override def toString = "TextFingerprint(" + length + ", " + hash1 + ", " + hash2 + ")"
+}
+
+object TextFingerprint {
+
+  // hashes are calculated modulo a prime, so that all products fit into Long
+  private val MODULUS = Int.MaxValue.toLong
+  private val BASE1 = 1000003L
+  private val BASE2 = 999983L
+
+  /** Size of text chunks when reading the document */
+  private val CHUNK_SIZE = 16 * 1024
+
+  val empty = new TextFingerprint(0, 0, 0, 1, 1)
+
+  def apply(text: CharSequence): TextFingerprint = {
+    var hash1 = 0L
+    var hash2 = 0L
+    var power1 = 1L
+    var power2 = 1L
+
+    var i = 0
+    while (i < text.length) {
+      val c = text.charAt(i)
+      hash1 = (hash1 * BASE1 + c) % MODULUS
+      hash2 = (hash2 * BASE2 + c) % MODULUS
+      power1 = (power1 * BASE1) % MODULUS
+      power2 = (power2 * BASE2) % MODULUS
+      i += 1
+    }
+
+    new TextFingerprint(text.length, hash1, hash2, power1, power2)
+  }
+
+  /** Fingerprints the document text. The text is read in chunks to avoid copying all of it. */
+  def apply(document: IDocument): TextFingerprint = {
+    val length = document.getLength
+
+    var fingerprint = empty
+    var offset = 0
+    while (offset < length) {
+      val chunkLength = math.min(CHUNK_SIZE, length - offset)
+      fingerprint = fingerprint ++ apply(document.get(offset, chunkLength))
+      offset += chunkLength
+    }
+
+    fingerprint
+  }
+
+
+  // commands and nodes are immutable, so cache their fingerprints while they are in use
+  private val commandFingerprints = WeakHashMap[Command, TextFingerprint]()
+  private val nodeFingerprints = WeakHashMap[Document.Node, TextFingerprint]()
+
+  /** Fingerprint of the command source */
+  def apply(command: Command): TextFingerprint =
+    cached(commandFingerprints, command) { apply(command.source) }
+
+  /** Fingerprint of the node text (sources of all its commands) */
+  def apply(node: Document.Node): TextFingerprint =
+    cached(nodeFingerprints, node) {
+      node.commands.foldLeft(empty) { (fingerprint, cmd) => fingerprint ++ apply(cmd) }
+    }
+
+  private def cached[K](cache: WeakHashMap[K, TextFingerprint], key: K)
+                       (fingerprint: => TextFingerprint): TextFingerprint = {
+    val existing = cache.synchronized { cache.get(key) }
+    existing getOrElse {
+      val calculated = fingerprint
+      cache.synchronized { cache.put(key, calculated) }
+      calculated
+    }
+  }
+
+}
@@ -0,0 +1,186 @@
+package isabelle.eclipse.core.text
+
+import java.net.URI
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.concurrent.{Await, Future}
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration.{Duration, DurationInt}
+
+import org.eclipse.core.filebuffers.FileBuffers
+import org.eclipse.core.filesystem.{EFS, IFileStore}
+import org.eclipse.core.runtime.{CoreException, IProgressMonitor}
+
+import isabelle.{Document, Session, Symbol, Text}
+import isabelle.eclipse.core.internal.IsabelleCorePlugin.{error, log}
+import isabelle.eclipse.core.resource.URIThyLoad
+
+
+/**
+ * Preloads theory files (e.g. imports of an opened theory) to the prover, without opening
+ * editors for them.
+ *
+ * The files are read, decoded and their headers parsed in parallel (with bounded concurrency),
+ * and then all of them are submitted to the prover in a single update. The decoded texts are
+ * cached by file modification stamp (and the symbol table used to decode them), so theories
+ * shared by several editors are only read once.
+ *
+ * @author Andrius Velykis
+ */
+object TheoryPreloader {
+
+  /** Maximum number of theory files loaded in parallel */
+  val MAX_PARALLEL = math.max(Runtime.getRuntime.availableProcessors, 2)
+
+  /** Maximum number of decoded theory texts to keep in the cache */
+  private val MAX_CACHED = 256
+
+  /** Interval to report the loading progress at */
+  private val PROGRESS_INTERVAL = 100.millis
+
+  /**
+   * Decoded text of a file, valid while the file (modification time and length) and
+   * the symbols it has been decoded with are unchanged
+   */
+  private case class CachedText(stamp: (Long, Long), symbols: AnyRef, text: String)
+
+  // access ordered (LRU) cache of decoded texts
+  private val textCache = new java.util.LinkedHashMap[URI, CachedText](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[URI, CachedText]) =
+      size > MAX_CACHED
+  }
+
+
+  /**
+   * Loads the given theories and submits them to the prover in a single update. Theories that
+   * have already been submitted with the same text are skipped.
+   *
+   * @return  `false` if cancelled via the monitor
+   */
+  def preload(session: Session,
+              names: List[Document.Node.Name],
+              monitor: IProgressMonitor): Boolean = {
+
+    monitor.beginTask("Loading theories", names.size + 1)
+
+    // the monitor is not thread-safe, so the loading tasks only count the loaded theories,
+    // and the progress is reported from this thread
+    val loadedCount = new AtomicInteger
+    var reported = 0
+
+    def reportProgress() {
+      val count = loadedCount.get
+      monitor.worked(count - reported)
+      reported = count
+    }
+
+    def load(name: Document.Node.Name): Option[List[Document.Edit_Text]] =
+      if (monitor.isCanceled) {
+        None
+      } else {
+        val edits = theoryText(name) flatMap { text => nodeEdits(session, name, text) }
+        loadedCount.incrementAndGet()
+        edits
+      }
+
+    // split the theories into lanes, each loading its theories one after another
+    val laneCount = math.min(MAX_PARALLEL, names.size)
+    val lanes = names.zipWithIndex.groupBy(_._2 % math.max(laneCount, 1)).values.toList
+
+    val tasks = lanes map { lane => Future { lane map { case (name, index) => (index, load(name)) } } }
+    val allTasks = Future.sequence(tasks)
+
+    while (!allTasks.isCompleted) {
+      try {
+        Await.ready(allTasks, PROGRESS_INTERVAL)
+      } catch {
+        case e: TimeoutException => // still loading
+      }
+      reportProgress()
+    }
+
+    val loaded = Await.result(allTasks, Duration.Inf).flatten
+
+    // submit in the dependency order
+    val edits = loaded.sortBy(_._1).flatMap(_._2).flatten
+
+    val done = !monitor.isCanceled
+    if (done) {
+      SubmissionCoordinator(session).submit(edits, monitor)
+      monitor.worked(1)
+    }
+
+    monitor.done()
+    done
+  }
+
+  /**
+   * Creates edits to initialise the node with the given text, or `None` if already submitted.
+   */
+  private def nodeEdits(session: Session,
+                        name: Document.Node.Name,
+                        text: String): Option[List[Document.Edit_Text]] = {
+
+    val node = session.snapshot(name).node
+    if (EditDocumentModel.alreadySubmitted(node, TextFingerprint(text), text.length)) {
+      None
+    } else {
+      val header = session.thy_load.check_thy_text(name, text)
+      val perspective = Text.Perspective(List(Text.Range(0)))
+      Some(EditDocumentModel.initEdits(session, name, header, text, perspective))
+    }
+  }
+
+  /**
+   * Retrieves the decoded text of the theory file. The cached text is reused if the file
+   * has not changed since it was read, and the symbols have not changed (e.g. after
+   * reinitialising Isabelle).
+   */
+  def theoryText(name: Document.Node.Name): Option[String] =
+    try {
+      val uri = URIThyLoad.resolveDocumentUri(name)
+      val store = EFS.getStore(uri)
+
+      val manager = FileBuffers.getTextFileBufferManager
+      Option(manager.getFileStoreTextFileBuffer(store)) match {
+
+        // the file is open elsewhere - use the (possibly modified) buffer contents
+        case Some(buffer) => Some(Symbol.decode(buffer.getDocument.get))
+
+        case None => {
+          val info = store.fetchInfo
+          val stamp = (info.getLastModified, info.getLength)
+
+          // the decoding table identifies the symbols the text has been decoded with
+          val symbols = Symbol.names
+
+          val cached = textCache.synchronized { Option(textCache.get(uri)) }
+          cached filter { c => c.stamp == stamp && (c.symbols eq symbols) } map (_.text) orElse {
+            val text = Symbol.decode(readFile(store))
+            textCache.synchronized { textCache.put(uri, CachedText(stamp, symbols, text)) }
+            Some(text)
+          }
+        }
+      }
+    } catch {
+      case e: CoreException => {
+        // cannot load the file - skip
+        log(error(Some(e)))
+        None
+      }
+    }
+
+  /** Reads the file contents using FileBuffers, which take care of the file encoding. */
+  @throws[CoreException]
+  private def readFile(store: IFileStore): String = {
+    val manager = FileBuffers.getTextFileBufferManager
+    manager.connectFileStore(store, null)
+    try {
+      manager.getFileStoreTextFileBuffer(store).getDocument.get
+    } finally {
+      manager.disconnectFileStore(store, null)
+    }
+  }
+
+}
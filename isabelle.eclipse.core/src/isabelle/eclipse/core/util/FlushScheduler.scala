@@ -0,0 +1,216 @@
+package isabelle.eclipse.core.util
+
+import scala.collection.mutable.Queue
+
+import org.eclipse.core.runtime.{IProgressMonitor, IStatus, NullProgressMonitor, Status}
+import org.eclipse.core.runtime.jobs.{ISchedulingRule, Job}
+
+
+/** An adaptive scheduler to flush pending edits (e.g. send them to the prover) after the edits
+  * stop coming in.
+  *
+  * The flush delay adapts to the measured typing rate: the edits are considered finished if
+  * no new edit arrives within a couple of usual intervals between edits (i.e. the user has
+  * paused typing). Then the flush is performed immediately. The delay also adapts to the
+  * measured duration of the flush itself, so that slow flushes are not requested more often
+  * than they can be performed. When editing continuously, the pending edits are still flushed
+  * after a maximum wait time.
+  *
+  * If the flush only hands the edits over for asynchronous processing (e.g. to the prover
+  * session), the owner can request to measure until the processing is acknowledged (see
+  * `acknowledge()`). Then the flush duration and the statistics include the round-trip latency,
+  * e.g. until the prover has assigned the new document version, not only the local handover.
+  *
+  * A single Eclipse Job is reused for all flushes: instead of cancelling and scheduling a new
+  * job on every edit, the job checks the flush deadline when it runs, and reschedules itself
+  * if the deadline has been postponed in the meantime.
+  *
+  * The scheduler also collects statistics about the flushes (see `stats`).
+  *
+  * @param name  name of the flush job
+  * @param rule  scheduling rule for the flush job
+  * @param awaitAck  whether flushes with edits are measured until `acknowledge()` is called,
+  *                  instead of until the flush function returns
+  * @param flush  the flush function
+  * @author Andrius Velykis
+  */
+class FlushScheduler(name: String, rule: ISchedulingRule, awaitAck: Boolean = false)
+                    (flush: IProgressMonitor => IStatus) {
+
+  import FlushScheduler._
+
+  // moving averages of the interval between edits and of the flush duration (ms)
+  private var typingInterval = INITIAL_TYPING_INTERVAL.toDouble
+  private var flushDuration = 0.0
+
+  // the time of last edit and the first unflushed edit (ms), 0 if none
+  private var lastEditTime = 0L
+  private var firstPendingTime = 0L
+  private var pendingEdits = 0
+
+  // the time at which the flush should happen (ms)
+  private var deadline = 0L
+
+  // flushes awaiting acknowledgement, in the order of flushing
+  private val unacknowledged = Queue[Flush]()
+
+  // statistics
+  private var flushCount = 0L
+  private var editCount = 0L
+  private var totalEditToSubmit = 0L
+  private var maxEditToSubmit = 0L
+
+  private val job = new Job(name) {
+    setRule(rule)
+
+    override def run(monitor: IProgressMonitor): IStatus = {
+      val remaining = FlushScheduler.this.synchronized { deadline - now }
+
+      if (monitor.isCanceled) {
+        Status.CANCEL_STATUS
+      } else if (remaining > 0) {
+        // the deadline has been postponed - wait more
+        schedule(remaining)
+        Status.OK_STATUS
+      } else {
+        flushNow(monitor)
+      }
+    }
+  }
+
+
+  /** Records a new edit and schedules a flush after the adapted delay. */
+  def edited() {
+    val delay = synchronized {
+      val time = now
+      val interval = time - lastEditTime
+
+      // only measure intervals within a burst of edits
+      if (lastEditTime > 0 && interval < MAX_DELAY) {
+        typingInterval += (interval - typingInterval) * SMOOTHING
+      }
+
+      lastEditTime = time
+      if (pendingEdits == 0) {
+        firstPendingTime = time
+      }
+      pendingEdits += 1
+
+      updateDeadline(time)
+    }
+
+    job.schedule(delay)
+  }
+
+  /** Requests a flush without recording an edit (e.g. when other state has changed). */
+  def requestFlush() {
+    val delay = synchronized { updateDeadline(now) }
+    job.schedule(delay)
+  }
+
+  /** Sets the new flush deadline using the adapted delay. Returns the delay to the deadline. */
+  private def updateDeadline(time: Long): Long = {
+    val delay = currentDelay
+    // do not postpone beyond the maximum wait time since the first pending edit
+    val maxDeadline = if (pendingEdits > 0) firstPendingTime + MAX_WAIT else time + delay
+    deadline = math.min(time + delay, maxDeadline)
+    math.max(deadline - time, 0)
+  }
+
+  /** The current flush delay: a few typing intervals (to detect a pause in typing), but not
+    * less than the flush duration.
+    */
+  def currentDelay: Long = synchronized {
+    val delay = math.max(typingInterval * IDLE_INTERVALS, flushDuration)
+    math.min(math.max(delay.toLong, MIN_DELAY), MAX_DELAY)
+  }
+
+  /** Flushes immediately in the current thread. */
+  def flushNow(monitor: IProgressMonitor = new NullProgressMonitor): IStatus = {
+
+    val (edits, firstEdit) = synchronized {
+      val pending = (pendingEdits, firstPendingTime)
+      pendingEdits = 0
+      firstPendingTime = 0
+      pending
+    }
+
+    val start = now
+    val status = flush(monitor)
+    val end = now
+
+    synchronized {
+      val flushed = Flush(start, firstEdit, edits)
+      if (awaitAck && edits > 0) {
+        // measured when acknowledged
+        unacknowledged.enqueue(flushed)
+      } else {
+        completed(flushed, end)
+      }
+    }
+
+    status
+  }
+
+  /** Acknowledges that the flushes so far have been processed (e.g. confirmed by the prover).
+    * Only used if awaiting acknowledgement.
+    */
+  def acknowledge() = synchronized {
+    val time = now
+    unacknowledged.dequeueAll(_ => true) foreach { completed(_, time) }
+  }
+
+  /** Records the measurements of the completed flush. */
+  private def completed(flushed: Flush, end: Long) {
+    flushDuration += ((end - flushed.start) - flushDuration) * SMOOTHING
+
+    if (flushed.edits > 0) {
+      flushCount += 1
+      editCount += flushed.edits
+      val editToSubmit = end - flushed.firstEdit
+      totalEditToSubmit += editToSubmit
+      maxEditToSubmit = math.max(maxEditToSubmit, editToSubmit)
+    }
+  }
+
+  /** Cancels the scheduled flush. */
+  def cancel() = job.cancel()
+
+  /** Statistics of the flushes that had edits. */
+  def stats: Stats = synchronized {
+    Stats(flushCount, editCount, totalEditToSubmit, maxEditToSubmit)
+  }
+
+}
+
+object FlushScheduler {
+
+  // all times in milliseconds
+  val MIN_DELAY = 50L
+  val MAX_DELAY = 1000L
+  val MAX_WAIT = 2000L
+
+  /** The initial typing interval (before it is measured) */
+  private val INITIAL_TYPING_INTERVAL = 150L
+  /** Number of typing intervals without edits to consider the user idle */
+  private val IDLE_INTERVALS = 2
+  /** The weight of the new measurement for moving averages */
+  private val SMOOTHING = 0.2
+
+  private def now = System.currentTimeMillis
+
+  /** A flush: its start time, the time of its first edit and the number of edits */
+  private case class Flush(start: Long, firstEdit: Long, edits: Int)
+
+
+  /** Flush statistics (times in milliseconds). */
+  case class Stats(flushes: Long, edits: Long, totalEditToSubmit: Long, maxEditToSubmit: Long) {
+
+    def editsPerFlush: Double = if (flushes == 0) 0 else edits.toDouble / flushes
+
+    /** Average time from the first edit in the flush until it is submitted
+      * (and acknowledged, if awaiting acknowledgement) */
+    def avgEditToSubmit: Double = if (flushes == 0) 0 else totalEditToSubmit.toDouble / flushes
+  }
+
+}
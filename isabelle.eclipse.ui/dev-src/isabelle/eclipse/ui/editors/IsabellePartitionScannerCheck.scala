@@ -0,0 +1,232 @@
+package isabelle.eclipse.ui.editors
+
+import scala.util.Random
+
+import org.eclipse.jface.text.{Document, IDocument, IDocumentPartitioner}
+import org.eclipse.jface.text.rules.{
+  FastPartitioner,
+  IPartitionTokenScanner,
+  MultiLineRule,
+  RuleBasedPartitionScanner,
+  Token
+}
+
+
+/**
+ * A standalone harness to check `IsabellePartitionScanner` and compare its performance with
+ * the rule-based partition scanner it replaces. It does not need a running workbench, only
+ * the plugin classes and the JFace text libraries on the classpath:
+ *
+ * {{{
+ * scala -cp <classpath> isabelle.eclipse.ui.editors.IsabellePartitionScannerCheck [lines]
+ * }}}
+ *
+ * The harness is kept in the `dev-src` folder, which is not part of the plugin build.
+ *
+ * The checks cover nested and unterminated comments, quoted text with escapes, and resuming
+ * the scan from a partition offset after random document edits with several seeds
+ * (incremental partitioning must give the same partitions as partitioning the edited text
+ * from scratch). The benchmark partitions
+ * a generated theory of the given number of lines with both scanners.
+ *
+ * @author Andrius Velykis
+ */
+object IsabellePartitionScannerCheck {
+
+  import IsabellePartitions._
+
+  private val DEFAULT_LINES = 20000
+  private val BENCHMARK_RUNS = 10
+  private val EDIT_CHECKS = 3000
+  private val EDIT_SEEDS = 1 to 6
+
+  private var failures = 0
+
+  def main(args: Array[String]) {
+
+    checkNested()
+    checkUnterminated()
+    checkQuoted()
+    EDIT_SEEDS foreach checkResume
+
+    val lines = args.headOption map (_.toInt) getOrElse DEFAULT_LINES
+    benchmark(lines)
+
+    if (failures > 0) {
+      println(failures + " check(s) failed")
+      sys.exit(1)
+    } else {
+      println("All checks passed")
+    }
+  }
+
+
+  private def checkNested() {
+    checkPartitions("nested comment", "a (* b (* c *) d *) e",
+      List(ISABELLE_COMMENT -> "(* b (* c *) d *)"))
+
+    checkPartitions("deeply nested comment", "(*(*(**)*)*) x (* *)",
+      List(ISABELLE_COMMENT -> "(*(*(**)*)*)", ISABELLE_COMMENT -> "(* *)"))
+
+    // no escapes in comments
+    checkPartitions("backslash in comment", "(* \\*) x",
+      List(ISABELLE_COMMENT -> "(* \\*)"))
+
+    checkPartitions("quotes in comment", "(* \" ` *) \"s\"",
+      List(ISABELLE_COMMENT -> "(* \" ` *)", ISABELLE_STRING -> "\"s\""))
+  }
+
+  private def checkUnterminated() {
+    // unterminated partitions extend to the end of the document
+    checkPartitions("unterminated comment", "a (* b",
+      List(ISABELLE_COMMENT -> "(* b"))
+
+    checkPartitions("unterminated outer comment", "x (* (* b *)\ny",
+      List(ISABELLE_COMMENT -> "(* (* b *)\ny"))
+
+    checkPartitions("unterminated verbatim", "{* a \"s\"",
+      List(ISABELLE_VERBATIM -> "{* a \"s\""))
+
+    checkPartitions("unterminated string", "\"a (* b *)",
+      List(ISABELLE_STRING -> "\"a (* b *)"))
+
+    checkPartitions("escape at the end", "\"a\\",
+      List(ISABELLE_STRING -> "\"a\\"))
+  }
+
+  private def checkQuoted() {
+    checkPartitions("mixed partitions", "\"s (* *)\" {* v (* *} `a`",
+      List(ISABELLE_STRING -> "\"s (* *)\"",
+           ISABELLE_VERBATIM -> "{* v (* *}",
+           ISABELLE_ALTSTRING -> "`a`"))
+
+    checkPartitions("escaped quote", "\"a \\\" b\" c",
+      List(ISABELLE_STRING -> "\"a \\\" b\""))
+
+    checkPartitions("multi-line string", "\"a\nb\" c",
+      List(ISABELLE_STRING -> "\"a\nb\""))
+  }
+
+  /**
+   * Edits the document randomly (inserting and removing partition delimiters) and checks
+   * that the incrementally updated partitions (resuming from partition offsets) match
+   * partitioning the text from scratch.
+   */
+  private def checkResume(seed: Int) {
+    val random = new Random(seed)
+    val fragments = List("(*", "*)", "{*", "*}", "\"", "`", "\\", "x", " ", "\n")
+
+    val document = new Document(generateTheory(200))
+    val partitioner = connect(document, new IsabellePartitionScanner)
+
+    var ok = true
+    var i = 0
+    while (ok && i < EDIT_CHECKS) {
+      val offset = random.nextInt(document.getLength + 1)
+      val length = math.min(random.nextInt(4), document.getLength - offset)
+      val text = fragments(random.nextInt(fragments.size))
+      document.replace(offset, length, text)
+
+      val expected = partitions(document, connect(new Document(document.get), new IsabellePartitionScanner))
+      val actual = partitions(document, partitioner)
+
+      if (actual != expected) {
+        fail("resume after edit " + i + " at " + offset + " (seed " + seed + ")", expected, actual)
+        ok = false
+      }
+      i += 1
+    }
+
+    if (ok) {
+      println("OK: resume after " + EDIT_CHECKS + " edits (seed " + seed + ")")
+    }
+  }
+
+
+  private def benchmark(lines: Int) {
+    val text = generateTheory(lines)
+    println("Benchmark: " + lines + " lines, " + text.length + " characters, " +
+      BENCHMARK_RUNS + " runs")
+
+    def time(name: String, scanner: () => IPartitionTokenScanner) {
+      // warm up
+      partitions(new Document(text), connect(new Document(text), scanner()))
+
+      val start = System.nanoTime
+      for (_ <- 1 to BENCHMARK_RUNS) {
+        val document = new Document(text)
+        connect(document, scanner()).computePartitioning(0, document.getLength)
+      }
+      val avg = (System.nanoTime - start) / BENCHMARK_RUNS / 1000000
+      println("  " + name + ": " + avg + " ms")
+    }
+
+    time("rule-based scanner", () => ruleBasedScanner())
+    time("IsabellePartitionScanner", () => new IsabellePartitionScanner)
+  }
+
+  /** The rule-based scanner replaced by `IsabellePartitionScanner` */
+  private def ruleBasedScanner(): IPartitionTokenScanner = {
+    val rules = List(
+      new MultiLineRule("(*", "*)", new Token(ISABELLE_COMMENT), '\\'),
+      new MultiLineRule("{*", "*}", new Token(ISABELLE_VERBATIM)),
+      new MultiLineRule("`", "`", new Token(ISABELLE_ALTSTRING), '\\'),
+      new MultiLineRule("\"", "\"", new Token(ISABELLE_STRING), '\\'))
+
+    val scanner = new RuleBasedPartitionScanner()
+    scanner.setPredicateRules(rules.toArray)
+    scanner
+  }
+
+  /** Generates theory-like text with comments, verbatim text and strings. */
+  private def generateTheory(lines: Int): String = {
+    val templates = Array(
+      "lemma foo_%d: \"x + %d = %d + x\"",
+      "  by (simp add: add_commute) (* simplify (* nested %d *) *)",
+      "text {* Some verbatim text %d with \"quotes\" *}",
+      "definition bar_%d :: \"nat => nat\" where `bar = id`",
+      "(* a comment spanning",
+      "   several lines %d *)",
+      "  apply (induct n arbitrary: m)",
+      "")
+
+    val b = new StringBuilder("theory Generated imports Main begin\n")
+    for (i <- 0 until lines) {
+      b.append(templates(i % templates.length).replace("%d", i.toString)).append('\n')
+    }
+    b.append("end\n")
+    b.toString
+  }
+
+
+  private def connect(document: IDocument, scanner: IPartitionTokenScanner): IDocumentPartitioner = {
+    val partitioner = new FastPartitioner(scanner, contentTypes)
+    partitioner.connect(document)
+    document.setDocumentPartitioner(partitioner)
+    partitioner
+  }
+
+  /** Non-default partitions of the document as (type, text) pairs */
+  private def partitions(document: IDocument,
+                         partitioner: IDocumentPartitioner): List[(String, String)] =
+    partitioner.computePartitioning(0, document.getLength).toList filter {
+      r => r.getType != IDocument.DEFAULT_CONTENT_TYPE
+    } map { r => (r.getType, document.get(r.getOffset, r.getLength)) }
+
+  private def checkPartitions(name: String, text: String, expected: List[(String, String)]) {
+    val document = new Document(text)
+    val actual = partitions(document, connect(document, new IsabellePartitionScanner))
+
+    if (actual == expected) {
+      println("OK: " + name)
+    } else {
+      fail(name, expected, actual)
+    }
+  }
+
+  private def fail(name: String, expected: Any, actual: Any) {
+    failures += 1
+    println("FAILED: " + name + "\n  expected: " + expected + "\n  actual:   " + actual)
+  }
+
+}
@@ -0,0 +1,180 @@
+package isabelle.eclipse.ui.annotations
+
+import scala.collection.mutable
+import scala.util.Random
+
+import isabelle.Text.Range
+import isabelle.eclipse.core.text.AnnotationInfo
+
+
+/**
+ * An interval index of annotation definitions, supporting range queries in O(k + log n),
+ * where k is the number of annotations found.
+ *
+ * The index is a treap (randomised binary search tree) ordered by annotation range start,
+ * where each node also records the maximum range end in its subtree. This allows skipping
+ * subtrees that end before the queried range. Equal annotations can be stored several times,
+ * as separate entries.
+ *
+ * Note: there is no synchronisation, so use it from a single thread.
+ *
+ * @author Andrius Velykis
+ */
+class AnnotationIndex {
+
+  import AnnotationIndex._
+
+  private var root: Node = null
+  private var nextId = 0L
+  private var count = 0
+
+  def size = count
+
+  /** Adds the annotation to the index and returns its entry. */
+  def add(ann: AnnotationInfo): Entry = {
+    val node = new Node(ann, nextId, random.nextInt)
+    nextId += 1
+    root = insert(root, node)
+    count += 1
+    node
+  }
+
+  /** Removes the annotation entry from the index. */
+  def remove(entry: Entry) = entry match {
+    case node: Node => {
+      val (newRoot, removed) = delete(root, node)
+      root = newRoot
+      if (removed) {
+        count -= 1
+      }
+    }
+  }
+
+  /** Finds entries of annotations overlapping the given range (using `Range.overlaps`). */
+  def overlapping(range: Range): List[Entry] = {
+    val found = mutable.ListBuffer[Entry]()
+    // the start of overlapping ranges can be at most this (an empty range can overlap at the start)
+    val maxStart = math.max(range.start, range.stop - 1)
+
+    def find(node: Node) {
+      // skip subtrees that end before the range
+      if (node != null && node.maxStop >= range.start) {
+        find(node.left)
+        if (node.range.start <= maxStart) {
+          if (node.range.overlaps(range)) {
+            found += node
+          }
+          find(node.right)
+        }
+      }
+    }
+
+    find(root)
+    found.toList
+  }
+
+  /** Finds entries of annotations that start after the given offset. */
+  def startingAfter(offset: Int): List[Entry] = {
+    val found = mutable.ListBuffer[Entry]()
+
+    def find(node: Node) {
+      if (node != null) {
+        if (node.range.start > offset) {
+          find(node.left)
+          found += node
+        }
+        find(node.right)
+      }
+    }
+
+    find(root)
+    found.toList
+  }
+
+
+  private def insert(node: Node, newNode: Node): Node =
+    if (node == null) {
+      newNode
+    } else if (before(newNode, node)) {
+      node.left = insert(node.left, newNode)
+      if (node.left.priority > node.priority) rotateRight(node) else update(node)
+    } else {
+      node.right = insert(node.right, newNode)
+      if (node.right.priority > node.priority) rotateLeft(node) else update(node)
+    }
+
+  private def delete(node: Node, target: Node): (Node, Boolean) =
+    if (node == null) {
+      (null, false)
+    } else if (node eq target) {
+      (merge(node.left, node.right), true)
+    } else if (before(target, node)) {
+      val (left, removed) = delete(node.left, target)
+      node.left = left
+      (update(node), removed)
+    } else {
+      val (right, removed) = delete(node.right, target)
+      node.right = right
+      (update(node), removed)
+    }
+
+  /** Merges two subtrees, where all nodes of `left` come before the nodes of `right`. */
+  private def merge(left: Node, right: Node): Node =
+    if (left == null) {
+      right
+    } else if (right == null) {
+      left
+    } else if (left.priority > right.priority) {
+      left.right = merge(left.right, right)
+      update(left)
+    } else {
+      right.left = merge(left, right.left)
+      update(right)
+    }
+
+  private def rotateRight(node: Node): Node = {
+    val left = node.left
+    node.left = left.right
+    left.right = update(node)
+    update(left)
+  }
+
+  private def rotateLeft(node: Node): Node = {
+    val right = node.right
+    node.right = right.left
+    right.left = update(node)
+    update(right)
+  }
+
+}
+
+object AnnotationIndex {
+
+  /** An annotation stored in the index */
+  sealed trait Entry {
+    def ann: AnnotationInfo
+  }
+
+  private val random = new Random
+
+  private class Node(val ann: AnnotationInfo, val id: Long, val priority: Int) extends Entry {
+    val range = ann.range
+    var maxStop = range.stop
+    var left: Node = null
+    var right: Node = null
+  }
+
+  /** Orders the nodes by range start, then by insertion (to keep equal annotations apart). */
+  private def before(a: Node, b: Node): Boolean =
+    a.range.start < b.range.start || (a.range.start == b.range.start && a.id < b.id)
+
+  /** Recalculates the subtree range end of the node */
+  private def update(node: Node): Node = {
+    var maxStop = node.range.stop
+    if (node.left != null) maxStop = math.max(maxStop, node.left.maxStop)
+    if (node.right != null) maxStop = math.max(maxStop, node.right.maxStop)
+    node.maxStop = maxStop
+    node
+  }
+
+}
@@ -4,6 +4,7 @@ import java.util.{LinkedHashMap, Map => JavaMap}
 
 import scala.language.implicitConversions
 import scala.collection.immutable.{Map, Seq}
+import scala.collection.mutable
 
 import org.eclipse.jface.text.{IDocument, ISynchronizable, Position}
 import org.eclipse.jface.text.source.{Annotation, AnnotationModel, IAnnotationModelExtension}
@@ -24,6 +25,9 @@ import isabelle.eclipse.ui.internal.IsabelleUIPlugin
  * it checks if there are corresponding existing annotations. In that case, the existing ones are
  * reused and updates are lighter on the UI.
  * 
+ * The annotation definitions are kept in an interval index, so the cost of replacing annotations
+ * depends on the number of annotations in the changed ranges, rather than on all of them.
+ * 
  * Note: currently there is no synchronisation, so use it from the UI thread
  * 
  * @author Andrius Velykis
@@ -47,7 +51,7 @@ trait IsabelleAnnotations extends IAnnotationModelExtension {
   def annotationTypes: Map[IsabelleAnnotation, String] = IsabelleAnnotationConstants.annotationTypes
 
 
-  private var modelAnnDefs: Seq[AnnotationInfo] = Seq()
+  private val modelAnnDefs = new AnnotationIndex
 
   private var existingAnns: Map[AnnotationInfo, Annotation] = Map()
 
@@ -59,23 +63,46 @@ trait IsabelleAnnotations extends IAnnotationModelExtension {
     val restrictRanges = ranges.map {rs => (rs map docRange.try_restrict).flatten }
     val changedRanges = restrictRanges getOrElse List(docRange)
 
-    val currentAnns = modelAnnDefs
-
-    // get annotations that fall within the changed ranges
-    val changedAnns = currentAnns.filter {ann => changedRanges exists ann.range.overlaps }
+    // get annotations that fall within the changed ranges (once, even if the ranges overlap)
+    val changedAnns = (changedRanges flatMap modelAnnDefs.overlapping).distinct
 
     // find changed annotations which are not replaced (will be deleted)
-    val deleteAnns = changedAnns diff anns
-    val newAnns = anns diff changedAnns
+    val deleteAnns = diff(changedAnns, anns)(_.ann, identity)
+    val newAnns = diff(anns, changedAnns)(identity, _.ann)
 
     // get annotations outside the document (will be deleted)
-    val outsideAnns = currentAnns.filter {_.range.start > docRange.stop}
+    val outsideAnns = modelAnnDefs.startingAfter(docRange.stop)
     val allDeleteAnns = deleteAnns ++ outsideAnns
 
-    val afterAnns = (currentAnns diff allDeleteAnns) ++ newAnns
-    this.modelAnnDefs = afterAnns
+    allDeleteAnns foreach modelAnnDefs.remove
+    newAnns foreach modelAnnDefs.add
+
+    doReplaceAnnotations(docRange, newAnns, allDeleteAnns map (_.ann))
+  }
+
+  /**
+   * Multiset difference of the sequences, the same as `Seq.diff`, but comparing the annotation
+   * definitions of elements via a hash map. Preserves the order of `xs`.
+   */
+  private def diff[A, B](xs: Seq[A], ys: Seq[B])
+                        (xAnn: A => AnnotationInfo, yAnn: B => AnnotationInfo): List[A] = {
+
+    val occurrences = mutable.HashMap[AnnotationInfo, Int]()
+    ys foreach { y =>
+      val ann = yAnn(y)
+      occurrences(ann) = occurrences.getOrElse(ann, 0) + 1
+    }
 
-    doReplaceAnnotations(docRange, newAnns, allDeleteAnns)
+    xs.toList filter { x =>
+      val ann = xAnn(x)
+      occurrences.get(ann) match {
+        case Some(n) if n > 0 => {
+          occurrences(ann) = n - 1
+          false
+        }
+        case _ => true
+      }
+    }
   }
 
   protected def doReplaceAnnotations(docRange: Range,
@@ -4,14 +4,17 @@ import java.util.{Map => JavaMap}
 
 import scala.collection.JavaConverters._
 import scala.collection.immutable.Seq
+import scala.collection.mutable
 
 import org.eclipse.core.resources.{IMarker, IResource, IWorkspace, IWorkspaceRunnable}
-import org.eclipse.core.runtime.{CoreException, IProgressMonitor}
-import org.eclipse.jface.text.BadLocationException
+import org.eclipse.core.runtime.{CoreException, IProgressMonitor, IStatus, Status}
+import org.eclipse.jface.text.{BadLocationException, IDocument, Position}
 import org.eclipse.jface.text.source.IAnnotationModelExtension
+import org.eclipse.ui.texteditor.{AbstractMarkerAnnotationModel, MarkerUtilities}
 
 import isabelle.Text.Range
-import isabelle.eclipse.core.text.{AnnotationInfo, IsabelleAnnotation}
+import isabelle.eclipse.core.text.{AnnotationInfo, IsabelleAnnotation, IsabelleDocument}
+import isabelle.eclipse.core.util.FlushScheduler
 import isabelle.eclipse.ui.annotations.IsabelleAnnotationConstants.MarkerInfo
 import isabelle.eclipse.ui.internal.IsabelleUIPlugin.{error, log}
 
@@ -22,9 +25,20 @@ import isabelle.eclipse.ui.internal.IsabelleUIPlugin.{error, log}
  * 
  * Needs an associated resource to set the markers on.
  * 
+ * The markers belong to the resource, which contains the ASCII version of Isabelle document.
+ * Therefore marker positions are translated to/from the base document offsets if the annotated
+ * document is an IsabelleDocument.
+ * 
+ * The markers are synchronised with the workspace in a rate-limited background job. Pending
+ * marker changes are collected and applied in batches, each in a single workspace operation.
+ * Where possible, existing markers are reused by updating their attributes (e.g. when only
+ * the marker position has changed), instead of deleting and creating new ones. When the model
+ * is disconnected (e.g. the editor is closed), the remaining changes are applied immediately,
+ * so that no late batch changes the markers afterwards.
+ * 
  * @author Andrius Velykis
  */
-trait IsabelleMarkerAnnotations extends IsabelleAnnotations {
+trait IsabelleMarkerAnnotations extends AbstractMarkerAnnotationModel with IsabelleAnnotations {
 
   def markerResource: IResource
 
@@ -36,6 +50,24 @@ trait IsabelleMarkerAnnotations extends IsabelleAnnotations {
 
   private var existingMarkers: Map[AnnotationInfo, MarkerRef] = Map()
 
+  /** Marker changes waiting to be applied to the workspace (synchronised on the object) */
+  private object pendingMarkers {
+    val add = mutable.LinkedHashSet[MarkerRef]()
+    val delete = mutable.ListBuffer[MarkerRef]()
+  }
+
+  /** A job to apply the pending marker changes in batches (lazy - resource is set after init) */
+  private lazy val markerSync = new FlushScheduler("Updating Isabelle markers",
+    markerResource)(syncMarkers)
+
+  override protected def disconnected() {
+    // apply the pending marker changes now instead of in a later batch
+    markerSync.cancel()
+    markerSync.flushNow()
+
+    super.disconnected()
+  }
+
   override protected def doReplaceAnnotations(docRange: Range,
                                               newAnnDefs: Seq[AnnotationInfo],
                                               deleteAnnDefs: Seq[AnnotationInfo]) {
@@ -50,7 +82,7 @@ trait IsabelleMarkerAnnotations extends IsabelleAnnotations {
     this.existingMarkers = afterMarkers
 
     // update the markers in the workspace
-    setMarkers(markerResource, deleteMarkers, addMarkers.values)
+    queueMarkers(deleteMarkers, addMarkers.values)
   }
 
   private def createMarkers(docRange: Range,
@@ -78,11 +110,12 @@ trait IsabelleMarkerAnnotations extends IsabelleAnnotations {
     // (do not ignore marker if the range is invalid (e.g. outside the max range)
     // but better display it at (0, 0)
     val range = docRange.try_restrict(annDef.range) getOrElse Range(0, 0)
+    val baseRange = toBaseRange(range)
 
     val markerAttrs = Map[String, AnyRef](
       IMarker.SEVERITY -> (markerInfo.severity: Integer),
-      IMarker.CHAR_START -> (range.start: Integer),
-      IMarker.CHAR_END -> (range.stop: Integer),
+      IMarker.CHAR_START -> (baseRange.start: Integer),
+      IMarker.CHAR_END -> (baseRange.stop: Integer),
       IMarker.MESSAGE -> annDef.message.orNull
       )
 
@@ -102,26 +135,119 @@ trait IsabelleMarkerAnnotations extends IsabelleAnnotations {
     allAttrs.asJava
   }
 
-  private def setMarkers(resource: IResource,
-                         deleteMarkers: Seq[MarkerRef],
-                         addMarkers: Iterable[MarkerRef]) = withWorkspaceUpdates(resource) {
-
-    // add new markers in the workspace runnable to control refresh
-    
-    // first delete existing markers, then add new ones
-    deleteMarkers.foreach { _.delete() }
-
-    // avoid creating already deleted markers (e.g. in concurrent case)
-    val add = addMarkers.iterator.filterNot { _.deleted }
-    add foreach { markerRef =>
-      val marker = resource.createMarker(markerRef.key)
-      markerRef.marker = Some(marker)
-      marker.setAttributes(markerRef.attrs)
+  private def toBaseRange(range: Range): Range = document match {
+    case isaDoc: IsabelleDocument => isaDoc.toBaseRange(range)
+    case _ => range
+  }
+
+  /**
+   * Translates the marker character positions (in the base document) to the document positions.
+   */
+  override protected def createPositionFromMarker(marker: IMarker): Position = {
+    val start = MarkerUtilities.getCharStart(marker)
+    val end = MarkerUtilities.getCharEnd(marker)
+
+    document match {
+      // positions from line numbers are the same in both documents, so only translate char ones
+      case isaDoc: IsabelleDocument if start >= 0 && end >= start => {
+        val baseRange = Range(start, math.min(end, isaDoc.base.getLength))
+        val range = isaDoc.fromBaseRange(baseRange)
+        new Position(range.start, range.length)
+      }
+      case _ => super.createPositionFromMarker(marker)
     }
   }
 
+  /**
+   * Translates the document position to the base document before updating the marker
+   * (e.g. upon saving).
+   */
+  @throws[CoreException]
+  override def updateMarker(marker: IMarker, document: IDocument, position: Position): Boolean =
+    (document, Option(position)) match {
+      case (isaDoc: IsabelleDocument, Some(pos)) => {
+        val range = isaDoc.toBaseRange(Range(pos.getOffset, pos.getOffset + pos.getLength))
+        super.updateMarker(marker, isaDoc.base, new Position(range.start, range.length))
+      }
+      case _ => super.updateMarker(marker, document, position)
+    }
+
+  private def queueMarkers(deleteMarkers: Seq[MarkerRef], addMarkers: Iterable[MarkerRef]) {
 
-  private def withWorkspaceUpdates(resource: IResource)(f: => Any) {
+    pendingMarkers.synchronized {
+      deleteMarkers foreach { markerRef =>
+        // markers that have not been created yet can just be dropped
+        if (!pendingMarkers.add.remove(markerRef)) {
+          pendingMarkers.delete += markerRef
+        }
+      }
+
+      pendingMarkers.add ++= addMarkers
+    }
+
+    markerSync.edited()
+  }
+
+  /**
+   * Applies the pending marker changes to the workspace. Deleted markers are reused for new
+   * ones of the same type (preferring the ones with the same message), so only their attributes
+   * need updating.
+   */
+  private def syncMarkers(monitor: IProgressMonitor): IStatus = {
+
+    val (deleteMarkers, addMarkers) = pendingMarkers.synchronized {
+      val pending = (pendingMarkers.delete.toList, pendingMarkers.add.toList)
+      pendingMarkers.delete.clear()
+      pendingMarkers.add.clear()
+      pending
+    }
+
+    if (!deleteMarkers.isEmpty || !addMarkers.isEmpty) {
+      val resource = markerResource
+      withWorkspaceUpdates(resource, monitor) {
+
+        // created markers available for reuse, by type
+        val reusable = mutable.Map[String, mutable.ListBuffer[(MarkerRef, IMarker)]]()
+        for (markerRef <- deleteMarkers; marker <- markerRef.marker) {
+          markerRef.marker = None
+          reusable.getOrElseUpdate(markerRef.key, mutable.ListBuffer()) += ((markerRef, marker))
+        }
+
+        def reuse(markerRef: MarkerRef): Option[IMarker] =
+          reusable.get(markerRef.key) filterNot (_.isEmpty) map { candidates =>
+            val message = markerRef.attrs.get(IMarker.MESSAGE)
+            val index = candidates.indexWhere(_._1.attrs.get(IMarker.MESSAGE) == message)
+            candidates.remove(math.max(index, 0))._2
+          }
+
+        addMarkers foreach { markerRef =>
+          reuse(markerRef) match {
+            case Some(marker) if marker.exists => {
+              // only update the attributes if they have changed
+              if (marker.getAttributes != markerRef.attrs) {
+                marker.setAttributes(markerRef.attrs)
+              }
+              markerRef.marker = Some(marker)
+            }
+
+            case _ => {
+              val marker = resource.createMarker(markerRef.key)
+              markerRef.marker = Some(marker)
+              marker.setAttributes(markerRef.attrs)
+            }
+          }
+        }
+
+        // delete the markers that were not reused
+        reusable.values.flatten foreach { case (_, marker) => marker.delete() }
+      }
+    }
+
+    Status.OK_STATUS
+  }
+
+
+  private def withWorkspaceUpdates(resource: IResource, monitor: IProgressMonitor)(f: => Any) {
     val runnable = new IWorkspaceRunnable {
       @throws[CoreException]
       override def run(monitor: IProgressMonitor) {
@@ -130,20 +256,15 @@ trait IsabelleMarkerAnnotations extends IsabelleAnnotations {
     }
 
     try {
-      resource.getWorkspace.run(runnable, resource, IWorkspace.AVOID_UPDATE, null)
+      resource.getWorkspace.run(runnable, resource, IWorkspace.AVOID_UPDATE, monitor)
     } catch {
       case ce: CoreException => log(error(Some(ce)))
     }
   }
 
   private class MarkerRef(val key: String, val attrs: JavaMap[String, AnyRef]) {
-    var deleted = false
+    /** The workspace marker, once created (only accessed by the marker sync job) */
     var marker: Option[IMarker] = None
-    
-    def delete() {
-      deleted = true
-      marker.foreach (_.delete())
-    }
   }
 
 }
@@ -1,18 +1,95 @@
 package isabelle.eclipse.ui.annotations
 
+import org.eclipse.core.runtime.{IProgressMonitor, IStatus, Status}
+import org.eclipse.core.runtime.jobs.Job
+import org.eclipse.jface.text.{IDocument, IDocumentExtension4, ITextViewer}
+
 import isabelle.Document.Snapshot
 import isabelle.Text.Range
-import isabelle.eclipse.core.text.AnnotationFactory
+import isabelle.eclipse.core.text.{AnnotationFactory, CommandIndex}
+import isabelle.eclipse.ui.editors.EditorUtil2
+import isabelle.eclipse.ui.util.SWTUtil.asyncUnlessDisposed
 
 
 /**
  * Updater for Isabelle theory viewer annotations: creates annotations from the given
  * document snapshot.
  *
+ * If the text viewer is given, updating all annotations is done in two tiers: the annotations
+ * for the visible part of the document (with a margin) are updated immediately, and the rest
+ * of the document is filled in by a background job in chunks. This way large documents get
+ * correct annotations where the user is looking without waiting for the full update.
+ *
+ * The visible range and the chunks are aligned to command boundaries, so that annotations
+ * of a command are never split or duplicated between the parts. The chunks are document
+ * offsets planned on the current snapshot, so they are only applied while the document is
+ * unchanged: incremental updates (e.g. after an edit) plan the back-fill anew.
+ *
  * @author Andrius Velykis
  */
+object TheoryViewerAnnotations {
+
+  /** Size of the document chunks (in characters) to fill in by the background job */
+  private val CHUNK_SIZE = 16 * 1024
+
+  /** Documents smaller than this are updated all at once */
+  private val MIN_TWO_TIER_LENGTH = 4 * CHUNK_SIZE
+
+  /** Extends the range to cover the whole commands it overlaps. */
+  private def commandAligned(snapshot: Snapshot, range: Range): Range = {
+    val formerRange = snapshot.revert(range)
+    val commands = CommandIndex(snapshot).commandRange(formerRange).toList
+
+    if (commands.isEmpty) {
+      range
+    } else {
+      val start = math.min(commands.head._2, formerRange.start)
+      val (lastCommand, lastStart) = commands.last
+      val stop = math.max(lastStart + lastCommand.length, formerRange.stop)
+      snapshot.convert(Range(start, stop))
+    }
+  }
+
+  /**
+   * Splits the range into chunks of at least `CHUNK_SIZE` (unless at the end), cutting only
+   * at command starts. The range is expected to be aligned to command boundaries.
+   */
+  private def chunks(snapshot: Snapshot, range: Range): List[Range] =
+    if (range.is_singularity) {
+      Nil
+    } else {
+      val formerRange = snapshot.revert(range)
+      val commandStarts = CommandIndex(snapshot).commandRange(formerRange) map (_._2)
+
+      // accumulate commands into a chunk until it reaches the chunk size
+      val cuts = (List(formerRange.start) /: commandStarts) {
+        case (cuts @ (last :: _), start) if start - last >= CHUNK_SIZE &&
+                                            start < formerRange.stop => start :: cuts
+        case (cuts, _) => cuts
+      }
+
+      val bounds = (formerRange.stop :: cuts).reverse map snapshot.convert
+      (bounds zip bounds.tail) map { case (start, stop) => Range(start, stop) }
+    }
+
+  private def modificationStamp(document: IDocument): Long = document match {
+    case doc: IDocumentExtension4 => doc.getModificationStamp
+    case _ => IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP
+  }
+
+}
+
 class TheoryViewerAnnotations(snapshot: => Option[Snapshot],
-                              anns: => Option[IsabelleAnnotations]) {
+                              anns: => Option[IsabelleAnnotations],
+                              viewer: => Option[ITextViewer] = None) {
+
+  import TheoryViewerAnnotations._
+
+  /** The background job filling in annotations outside the visible part, if one is running */
+  @volatile private var backfillJob: Option[Job] = None
+
+  /** The document modification stamp the running back-fill has been planned for */
+  private var backfillStamp = IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP
 
   /**
    * Must be called from the UI thread, otherwise getting ConcurrentModificationException
@@ -26,17 +103,136 @@ class TheoryViewerAnnotations(snapshot: => Option[Snapshot],
       // Only create new annotations if the Isabelle document snapshot is available
       // Note that old persistent markers are not deleted if present then
 
-      // if changed ranges not defined, it means "all" - create document length range
-      val ranges = changedRanges getOrElse List(annotations.documentRange)
+      changedRanges match {
+        case Some(ranges) => {
+          replaceAnnotations(s, annotations, ranges, changedRanges)
+
+          // the running back-fill has been planned for the document before it was changed
+          // (its offsets are no longer valid), so plan it anew
+          if (backfillJob.isDefined && backfillStamp != modificationStamp(annotations.document)) {
+            cancelBackfill()
+            visibleRange(s, annotations, annotations.documentRange) foreach { visible =>
+              backfill(annotations, outsideChunks(s, annotations.documentRange, visible))
+            }
+          }
+        }
+
+        // if changed ranges not defined, it means "all"
+        case None => {
+          // any running back-fill is superseded
+          cancelBackfill()
 
-      // generate annotations for the changed range and replace in the model
-      if (!ranges.isEmpty) {
-        val annDefs = AnnotationFactory.createAnnotations(s, ranges)
-        annotations.replaceAnnotationsRange(annDefs, changedRanges)
+          val docRange = annotations.documentRange
+          visibleRange(s, annotations, docRange) match {
+
+            case Some(visible) => {
+              replaceAnnotations(s, annotations, List(visible), Some(List(visible)))
+              backfill(annotations, outsideChunks(s, docRange, visible))
+            }
+
+            // create document length range
+            case None => replaceAnnotations(s, annotations, List(docRange), None)
+          }
+        }
       }
     }
 
     case _ => // ignore
   }
 
+  private def replaceAnnotations(snapshot: Snapshot,
+                                 annotations: IsabelleAnnotations,
+                                 ranges: List[Range],
+                                 changedRanges: Option[List[Range]]) =
+    // generate annotations for the changed range and replace in the model
+    if (!ranges.isEmpty) {
+      val annDefs = AnnotationFactory.createAnnotations(snapshot, ranges)
+      annotations.replaceAnnotationsRange(annDefs, changedRanges)
+    }
+
+  /**
+   * Calculates the visible range of the document with a margin of one screen above and below,
+   * extended to command boundaries.
+   * Returns `None` if the document is small enough to update all at once.
+   */
+  private def visibleRange(snapshot: Snapshot,
+                           annotations: IsabelleAnnotations,
+                           docRange: Range): Option[Range] =
+    if (docRange.length < MIN_TWO_TIER_LENGTH) {
+      None
+    } else {
+      viewer map { v =>
+        val (start, end) = EditorUtil2.visibleRange(v, annotations.document)
+        val margin = math.max(end - start, CHUNK_SIZE / 4)
+        val visible = docRange.restrict(Range(math.max(start - margin, 0), end + margin))
+        docRange.restrict(commandAligned(snapshot, visible))
+      }
+    }
+
+  /** Chunks of the document outside the visible range: the ones after it go first. */
+  private def outsideChunks(snapshot: Snapshot, docRange: Range, visible: Range): List[Range] =
+    chunks(snapshot, Range(visible.stop, docRange.stop)) :::
+      chunks(snapshot, Range(docRange.start, visible.start)).reverse
+
+  private def backfill(annotations: IsabelleAnnotations, ranges: List[Range]) = if (!ranges.isEmpty) {
+
+    // the ranges are only valid for the current document contents
+    val document = annotations.document
+    val stamp = modificationStamp(document)
+
+    val job = new Job("Updating Isabelle annotations") {
+      override protected def run(monitor: IProgressMonitor): IStatus = {
+
+        val job = this
+        // the job is superseded if cancelled, a new one has been started or the document
+        // has changed (the next incremental update plans a new back-fill)
+        def current = !monitor.isCanceled && backfillJob.exists(_ eq job) &&
+          stamp != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP &&
+          modificationStamp(document) == stamp
+
+        val done = ranges forall { range =>
+          if (current) {
+            // use the latest snapshot for each chunk
+            snapshot foreach { s =>
+              val annDefs = AnnotationFactory.createAnnotations(s, List(range))
+
+              // set the annotations in the UI thread, unless superseded in the meantime
+              asyncUnlessDisposed(viewer flatMap (v => Option(v.getTextWidget))) {
+                if (current) {
+                  annotations.replaceAnnotationsRange(annDefs, Some(List(range)))
+                }
+              }
+            }
+          }
+
+          current
+        }
+
+        if (done) {
+          // finished - incremental updates do not need to plan a new back-fill
+          asyncUnlessDisposed(viewer flatMap (v => Option(v.getTextWidget))) {
+            if (backfillJob.exists(_ eq job)) {
+              backfillJob = None
+            }
+          }
+        }
+
+        if (done) Status.OK_STATUS else Status.CANCEL_STATUS
+      }
+    }
+
+    job.setPriority(Job.DECORATE)
+    job.setSystem(true)
+
+    backfillJob = Some(job)
+    backfillStamp = stamp
+    job.schedule()
+  }
+
+  /** Cancels the background annotation update, if one is running. */
+  def cancelBackfill() {
+    backfillJob foreach (_.cancel())
+    backfillJob = None
+  }
+
 }
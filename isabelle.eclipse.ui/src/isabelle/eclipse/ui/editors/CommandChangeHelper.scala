@@ -1,11 +1,14 @@
 package isabelle.eclipse.ui.editors
 
+import java.util.concurrent.atomic.AtomicLong
+
 import scala.actors.Actor._
+import scala.actors.TIMEOUT
 
 import isabelle.{Command, Session}
 import isabelle.Document.Snapshot
 import isabelle.Text.Range
-import isabelle.eclipse.core.text.DocumentModel
+import isabelle.eclipse.core.text.{AnnotationFactory, DocumentModel}
 import isabelle.eclipse.core.util.{LoggingActor, SessionEvents}
 
 /**
@@ -14,35 +17,114 @@ import isabelle.eclipse.core.util.{LoggingActor, SessionEvents}
  * Reacts to command changes and calculates the affected document ranges, which are then pushed
  * as handler notifications.
  *
+ * The events are coalesced within a frame window: after an event arrives, further events
+ * within the window are merged with it, and the handler is notified once about all changed
+ * commands. This avoids separate UI updates for each event when the prover is busy.
+ *
  * @author Andrius Velykis
  */
+object CommandChangeHelper {
+
+  /** The default frame window to coalesce the events (ms) */
+  val DEFAULT_FRAME_WINDOW = 16L
+
+  /** Statistics of the coalesced events. */
+  case class Stats(events: Long, notifications: Long) {
+    /** Number of events merged into other notifications */
+    def merged = events - notifications
+  }
+
+  /**
+   * Merges two changes, where `None` means "all changed".
+   */
+  def mergeChanges(changes1: Option[List[Range]],
+                   changes2: Option[List[Range]]): Option[List[Range]] =
+    for (ranges1 <- changes1; ranges2 <- changes2) yield mergeRanges(ranges1 ::: ranges2)
+
+  /**
+   * Merges overlapping/adjoined ranges.
+   */
+  def mergeRanges(rangesTr: TraversableOnce[Range]): List[Range] = {
+
+    // sort the ranges just in case
+    val ranges = rangesTr.toList.sorted(Range.Ordering)
+
+    def merge(pending: List[Range], acc: List[Range]): List[Range] = pending match {
+      case Nil => acc
+
+      case single :: Nil => single :: acc
+
+      case r1 :: r2 :: rs => if (r2.start - r1.stop <= 1) {
+        // either the ranges overlap, or the gap between them is too small
+        // merge and continue
+        val merged = Range((r1.start min r2.start), (r1.stop max r2.stop))
+        merge(merged :: rs, acc)
+      } else {
+        // not overlapping ranges - accumulate first and continue to the next one
+        merge(r2 :: rs, r1 :: acc)
+      }
+    }
+
+    merge(ranges, Nil).reverse
+  }
+
+}
+
 class CommandChangeHelper(docModel: DocumentModel,
-                          fireInit: Boolean = false)(
+                          fireInit: Boolean = false,
+                          frameWindow: Long = CommandChangeHelper.DEFAULT_FRAME_WINDOW)(
                               handler: Option[List[Range]] => Unit) extends SessionEvents {
 
+  import CommandChangeHelper._
+
   // When commands change (e.g. results from the prover), notify the handler about changed ranges.
   /** Subscribe to commands change session events */
   override protected def sessionEvents(session: Session) = List(session.commands_changed)
 
   /** When the session is initialised, notify about "all changed" if enabled */
   override protected def sessionInit(session: Session) =
-    if (fireInit) notifyCommandsChanged(None)
+    if (fireInit) {
+      eventCount.incrementAndGet()
+      notifyCommandsChanged(None)
+    }
 
   /** The actor to react to session events */
   override protected val sessionActor = LoggingActor {
     loop {
       react {
-        case changed: Session.Commands_Changed => {
-
-          // avoid updating if commands are from a different document
-          if (changed.nodes contains docModel.name) {
-            notifyCommandsChanged(Some(changed.commands))
-          }
+        case changed: Session.Commands_Changed => if (relevant(changed)) {
+          coalesceFrame(changed.commands)
         }
       }
     }
   }
 
+  // avoid updating if commands are from a different document
+  private def relevant(changed: Session.Commands_Changed) = changed.nodes contains docModel.name
+
+  /**
+   * Merges the commands of further events arriving within the frame window, and then notifies
+   * about all of them together.
+   */
+  private def coalesceFrame(commands: Set[Command]) {
+    val deadline = System.currentTimeMillis + frameWindow
+    eventCount.incrementAndGet()
+
+    def collect(pending: Set[Command]): Unit =
+      reactWithin(math.max(deadline - System.currentTimeMillis, 0)) {
+        case changed: Session.Commands_Changed => if (relevant(changed)) {
+          eventCount.incrementAndGet()
+          collect(pending ++ changed.commands)
+        } else {
+          collect(pending)
+        }
+
+        case TIMEOUT => notifyCommandsChanged(Some(pending))
+      }
+
+    collect(commands)
+  }
+
   def init() {
     initSessionEvents()
   }
@@ -53,9 +135,17 @@ class CommandChangeHelper(docModel: DocumentModel,
 
   private def notifyCommandsChanged(changedCmds: Option[Set[Command]]) {
     val ranges = changedRanges(docModel.snapshot, changedCmds)
+    notificationCount.incrementAndGet()
     handler(ranges)
   }
 
+  // counted from both the session actor and the UI thread
+  private val eventCount = new AtomicLong
+  private val notificationCount = new AtomicLong
+
+  /** Statistics of the command change events and notifications about them */
+  def stats = Stats(eventCount.get, notificationCount.get)
+
   @volatile private var lastCommandCount = 0
   @volatile private var lastSnapshotOutdated = true
 
@@ -90,7 +180,7 @@ class CommandChangeHelper(docModel: DocumentModel,
 
         // get the ranges occupied by the changed commands
         // and refresh the view/recalculate annotations for them afterwards
-        val cmdRanges = commandRanges(snapshot, cmds)
+        val cmdRanges = AnnotationFactory.commandRanges(snapshot, cmds)
 
         // merge overlapping/adjoining ranges
         val ranges = mergeRanges(cmdRanges)
@@ -99,43 +189,4 @@ class CommandChangeHelper(docModel: DocumentModel,
     }
   }
 
-  /**
-   * Calculates document ranges for the given commands.
-   */
-  private def commandRanges(snapshot: Snapshot, commands: Set[Command]): List[Range] = {
-
-    val ranges = snapshot.node.command_range(0).collect {
-      case (cmd, start) if commands.contains(cmd) => cmd.range + start
-    }
-
-    ranges.toList
-  }
-
-  /**
-   * Merges overlapping/adjoined ranges.
-   */
-  private def mergeRanges(rangesTr: TraversableOnce[Range]): List[Range] = {
-
-    // sort the ranges just in case
-    val ranges = rangesTr.toList.sorted(Range.Ordering)
-
-    def merge(pending: List[Range], acc: List[Range]): List[Range] = pending match {
-      case Nil => acc
-
-      case single :: Nil => single :: acc
-
-      case r1 :: r2 :: rs => if (r2.start - r1.stop <= 1) {
-        // either the ranges overlap, or the gap between them is too small
-        // merge and continue
-        val merged = Range((r1.start min r2.start), (r1.stop max r2.stop))
-        merge(merged :: rs, acc)
-      } else {
-        // not overlapping ranges - accumulate first and continue to the next one
-        merge(r2 :: rs, r1 :: acc)
-      }
-    }
-
-    merge(ranges, Nil).reverse
-  }
-
 }
@@ -1,17 +1,9 @@
 package isabelle.eclipse.ui.editors
 
 import isabelle.eclipse.core.text.DocumentModel
-import isabelle.eclipse.ui.internal.IsabelleUIPlugin.{error, log}
 import isabelle.eclipse.ui.util.SWTUtil
 
-import org.eclipse.jface.text.{
-  BadLocationException,
-  DocumentEvent,
-  IDocumentListener,
-  ITextViewer,
-  IViewportListener,
-  JFaceTextUtil
-}
+import org.eclipse.jface.text.{DocumentEvent, IDocumentListener, ITextViewer, IViewportListener}
 import org.eclipse.swt.custom.StyledText
 import org.eclipse.swt.events.{ControlAdapter, ControlEvent}
 
@@ -79,44 +71,9 @@ trait DocumentPerspectiveTracker {
     // only update if viewer is available
     textViewer foreach { v =>
       
-      val (start, end) = visibleRange(v)
+      val (start, end) = EditorUtil2.visibleRange(v, isabelleModel.document)
       isabelleModel.setActivePerspective(math.max(start, 0), math.max(end - start, 0))
     }
   }
   
-  /** Calculates that start and end offsets of the currently visible text range */
-  private def visibleRange(viewer: ITextViewer): (Int, Int) = {
-    
-    val visibleLines = JFaceTextUtil.getVisibleModelLines(viewer)
-
-    if (visibleLines.getNumberOfLines > 0 && visibleLines.getStartLine >= 0) {
-      // something is visible
-      val document = isabelleModel.document
-
-      try {
-        
-        val start = document.getLineOffset(visibleLines.getStartLine)
-        val endLine = visibleLines.getStartLine + visibleLines.getNumberOfLines
-        val end = if (endLine >= document.getNumberOfLines - 1) {
-          document.getLength
-        } else {
-          document.getLineOffset(endLine) + document.getLineLength(endLine)
-        }
-
-        (start, math.max(start, end))
-        
-      } catch {
-        
-        case e: BadLocationException => {
-          log(error(Some(e)))
-          // something is visible, but problems calculating the perspective: use full document
-          (0, document.getLength)
-        }
-      }
-    } else {
-      // no perspective
-      (0, 0)
-    }
-  }
-  
 }
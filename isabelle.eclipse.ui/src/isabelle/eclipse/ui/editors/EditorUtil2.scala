@@ -1,9 +1,11 @@
 package isabelle.eclipse.ui.editors
 
-import org.eclipse.jface.text.{BadLocationException, IDocument, ITextSelection, ITextViewer}
+import org.eclipse.jface.text.{BadLocationException, IDocument, ITextSelection, ITextViewer, JFaceTextUtil}
 import org.eclipse.jface.viewers.ISelectionProvider
 import org.eclipse.ui.IEditorPart
 
+import isabelle.eclipse.ui.internal.IsabelleUIPlugin.{error, log}
+
 
 /**
  * Editor utilities (separate from EditorUtil because that one is in Java at the moment)
@@ -98,5 +100,42 @@ object EditorUtil2 {
       viewer.setTopIndex(topIndex)
     }
   }
+
+
+  /**
+   * Calculates the start and end offsets of the text range currently visible in the viewer.
+   * The offsets are in the given (model) document.
+   */
+  def visibleRange(viewer: ITextViewer, document: IDocument): (Int, Int) = {
+    
+    val visibleLines = JFaceTextUtil.getVisibleModelLines(viewer)
+
+    if (visibleLines.getNumberOfLines > 0 && visibleLines.getStartLine >= 0) {
+      // something is visible
+      try {
+        
+        val start = document.getLineOffset(visibleLines.getStartLine)
+        val endLine = visibleLines.getStartLine + visibleLines.getNumberOfLines
+        val end = if (endLine >= document.getNumberOfLines - 1) {
+          document.getLength
+        } else {
+          document.getLineOffset(endLine) + document.getLineLength(endLine)
+        }
+
+        (start, math.max(start, end))
+        
+      } catch {
+        
+        case e: BadLocationException => {
+          log(error(Some(e)))
+          // something is visible, but problems calculating the range: use full document
+          (0, document.getLength)
+        }
+      }
+    } else {
+      // nothing visible
+      (0, 0)
+    }
+  }
   
 }
@@ -0,0 +1,223 @@
+package isabelle.eclipse.ui.editors
+
+import org.eclipse.jface.text.{BadLocationException, IDocument}
+import org.eclipse.jface.text.rules.{IPartitionTokenScanner, IToken, Token}
+
+
+/**
+ * A single-pass partition scanner for Isabelle text: comments (which can be nested), verbatim
+ * text, strings and alternative strings.
+ *
+ * Unlike rule-based scanning, the characters are examined once and the text between partitions
+ * is returned as a single undefined token. The document is read in chunks to avoid copying the whole scanned range,
+ * since the partitioner scans up to the end of the document and stops once partitions match.
+ *
+ * Unterminated partitions extend to the end of the scanned range (as the Isabelle scanner
+ * context continues till the end of the text). Treating them as normal text instead would make
+ * the partitioning non-local: a nested comment left open could be closed by an edit anywhere
+ * later in the document, which the incremental partitioner would not rescan.
+ *
+ * When resuming inside a partition, the scanning starts at the partition start - the partition
+ * boundaries are always outside any comment, so no further state is needed.
+ *
+ * @author Andrius Velykis
+ */
+class IsabellePartitionScanner extends IPartitionTokenScanner {
+
+  import IsabellePartitionScanner._
+  import IsabellePartitions._
+
+  private var document: IDocument = _
+  private var rangeEnd = 0
+
+  /** Offset of the next token */
+  private var position = 0
+
+  private var tokenOffset = 0
+  private var tokenLength = 0
+
+  // the partition found after default text, to be returned next
+  private var nextPartitionStart = -1
+  private var nextPartitionEnd = -1
+  private var nextPartitionToken: IToken = Token.UNDEFINED
+
+  // the token of the last matched partition
+  private var matchedToken: IToken = Token.UNDEFINED
+
+  // the document text is read in chunks
+  private var chunk = ""
+  private var chunkStart = 0
+
+
+  override def setRange(document: IDocument, offset: Int, length: Int) =
+    setPartialRange(document, offset, length, null, -1)
+
+  override def setPartialRange(document: IDocument, offset: Int, length: Int,
+                               contentType: String, partitionOffset: Int) {
+    this.document = document
+
+    // if resuming inside a partition, rescan the partition from its start
+    val start = if (partitionOffset > -1 && partitionOffset < offset) partitionOffset else offset
+
+    rangeEnd = offset + length
+    position = start
+    tokenOffset = start
+    tokenLength = 0
+
+    nextPartitionStart = -1
+    chunk = ""
+    chunkStart = 0
+  }
+
+  override def nextToken(): IToken = {
+    tokenOffset = position
+
+    val token =
+      if (position >= rangeEnd) {
+        Token.EOF
+      } else if (position == nextPartitionStart) {
+        // partition already matched after the default text
+        position = nextPartitionEnd
+        nextPartitionToken
+      } else {
+        val partitionEnd = matchPartition(position)
+        if (partitionEnd >= 0) {
+          position = partitionEnd
+          matchedToken
+        } else {
+          // default text - find the next partition
+          position = nextPartition(position + 1)
+          Token.UNDEFINED
+        }
+      }
+
+    tokenLength = position - tokenOffset
+    token
+  }
+
+  override def getTokenOffset() = tokenOffset
+
+  override def getTokenLength() = tokenLength
+
+
+  /** Finds the start of the next partition (or range end), and records the partition. */
+  private def nextPartition(from: Int): Int = {
+    var i = from
+    var found = false
+    while (!found && i < rangeEnd) {
+      val partitionEnd = if (startsPartition(charAt(i))) matchPartition(i) else -1
+      if (partitionEnd >= 0) {
+        nextPartitionStart = i
+        nextPartitionEnd = partitionEnd
+        nextPartitionToken = matchedToken
+        found = true
+      } else {
+        i += 1
+      }
+    }
+    i
+  }
+
+  private def startsPartition(c: Char) = c == '(' || c == '{' || c == '"' || c == '`'
+
+  /**
+   * Matches a partition at the given offset.
+   *
+   * @return  the end of the matched partition (the range end if unterminated),
+   *          or -1 if no partition starts there
+   */
+  private def matchPartition(offset: Int): Int = charAt(offset) match {
+    case '(' if charAt(offset + 1) == '*' => matched(COMMENT_TOKEN, scanComment(offset + 2))
+    case '{' if charAt(offset + 1) == '*' => matched(VERBATIM_TOKEN, scanVerbatim(offset + 2))
+    case '"' => matched(STRING_TOKEN, scanQuoted(offset + 1, '"'))
+    case '`' => matched(ALTSTRING_TOKEN, scanQuoted(offset + 1, '`'))
+    case _ => -1
+  }
+
+  private def matched(token: IToken, end: Int): Int = {
+    matchedToken = token
+    end
+  }
+
+  /** Scans a (nested) comment body till its end */
+  private def scanComment(from: Int): Int = {
+    var depth = 1
+    var i = from
+    while (depth > 0 && i < rangeEnd) {
+      val c = charAt(i)
+      if (c == '(' && charAt(i + 1) == '*') {
+        depth += 1
+        i += 2
+      } else if (c == '*' && charAt(i + 1) == ')') {
+        depth -= 1
+        i += 2
+      } else {
+        i += 1
+      }
+    }
+
+    math.min(i, rangeEnd)
+  }
+
+  /** Scans a verbatim body till its end */
+  private def scanVerbatim(from: Int): Int = {
+    var i = from
+    while (i < rangeEnd && !(charAt(i) == '*' && charAt(i + 1) == '}')) {
+      i += 1
+    }
+
+    if (i < rangeEnd) i + 2 else rangeEnd
+  }
+
+  /** Scans a quoted body (with escapes) till the closing quote */
+  private def scanQuoted(from: Int, quote: Char): Int = {
+    var i = from
+    while (i < rangeEnd && charAt(i) != quote) {
+      // skip the escaped character
+      i += (if (charAt(i) == '\\') 2 else 1)
+    }
+
+    if (i < rangeEnd) i + 1 else rangeEnd
+  }
+
+  /** Reads the document character, or EOF_CHAR if outside the scanned range */
+  private def charAt(offset: Int): Char =
+    if (offset >= rangeEnd) {
+      EOF_CHAR
+    } else {
+      if (offset < chunkStart || offset >= chunkStart + chunk.length) {
+        readChunk(offset)
+      }
+
+      if (offset < chunkStart + chunk.length) chunk.charAt(offset - chunkStart) else EOF_CHAR
+    }
+
+  private def readChunk(offset: Int) {
+    chunkStart = offset
+    chunk = try {
+      document.get(offset, math.min(CHUNK_SIZE, rangeEnd - offset))
+    } catch {
+      // outside the document - stop scanning there
+      case e: BadLocationException => {
+        rangeEnd = offset
+        ""
+      }
+    }
+  }
+
+}
+
+object IsabellePartitionScanner {
+
+  import IsabellePartitions._
+
+  private val CHUNK_SIZE = 4096
+
+  private val EOF_CHAR = '\u0000'
+
+  private val COMMENT_TOKEN = new Token(ISABELLE_COMMENT)
+  private val VERBATIM_TOKEN = new Token(ISABELLE_VERBATIM)
+  private val STRING_TOKEN = new Token(ISABELLE_STRING)
+  private val ALTSTRING_TOKEN = new Token(ISABELLE_ALTSTRING)
+
+}
@@ -1,14 +1,7 @@
 package isabelle.eclipse.ui.editors
 
 import org.eclipse.jface.text.{IDocument, IDocumentExtension3, IDocumentPartitioner}
-import org.eclipse.jface.text.rules.{
-  FastPartitioner,
-  IPartitionTokenScanner,
-  IWordDetector,
-  MultiLineRule,
-  RuleBasedPartitionScanner,
-  Token
-}
+import org.eclipse.jface.text.rules.{FastPartitioner, IPartitionTokenScanner, IWordDetector}
 
 
 /**
@@ -47,31 +40,13 @@ object IsabellePartitions {
   }
 
   /** Creates a partition scanner for Isabelle Theory mode, which returns tokens with partition IDs */
-  def createTheoryScanner(): IPartitionTokenScanner = {
-
-    val rules = textRules// ++ keywordRules(THEORY_KEYWORDS)
-
-    val scanner = new RuleBasedPartitionScanner()
-    scanner.setPredicateRules(rules.toArray)
-    scanner
-  }
+  def createTheoryScanner(): IPartitionTokenScanner =
+    // keyword partitions not supported at the moment (see keywordRules below)
+    new IsabellePartitionScanner
   
   /** Creates a partition scanner for Isabelle Session mode, which returns tokens with partition IDs */
-  def createSessionScanner(): IPartitionTokenScanner = {
-
-    val rules = textRules// ++ keywordRules(SESSION_KEYWORDS)
-
-    val scanner = new RuleBasedPartitionScanner()
-    scanner.setPredicateRules(rules.toArray)
-    scanner
-  }
-  
-  /** Create text rules (e.g. comments) */
-  private def textRules = List(
-      new MultiLineRule("(*", "*)", new Token(ISABELLE_COMMENT), '\\'),
-      new MultiLineRule("{*", "*}", new Token(ISABELLE_VERBATIM)),
-      new MultiLineRule("`", "`", new Token(ISABELLE_ALTSTRING), '\\'),
-      new MultiLineRule("\"", "\"", new Token(ISABELLE_STRING), '\\'))
+  def createSessionScanner(): IPartitionTokenScanner =
+    new IsabellePartitionScanner
   
 // keyword rules not working at the moment
 // 
@@ -5,8 +5,8 @@ import java.net.{URI, URISyntaxException}
 import scala.actors.Actor._
 import scala.collection.JavaConverters._
 
-import org.eclipse.core.filesystem.EFS
-import org.eclipse.core.runtime.CoreException
+import org.eclipse.core.runtime.{CoreException, IProgressMonitor, IStatus, Status}
+import org.eclipse.core.runtime.jobs.Job
 import org.eclipse.jface.dialogs.MessageDialog
 import org.eclipse.jface.resource.{JFaceResources, LocalResourceManager}
 import org.eclipse.jface.text.{IDocument, IRegion, ITextViewerExtension2, Region}
@@ -24,7 +24,8 @@ import isabelle.Text.Range
 import isabelle.eclipse.core.IsabelleCore
 import isabelle.eclipse.core.app.Isabelle
 import isabelle.eclipse.core.resource.URIThyLoad._
-import isabelle.eclipse.core.text.{DocumentModel, EditDocumentModel, IsabelleDocument, ReadOnlyDocumentModel}
+import isabelle.eclipse.core.text.{CommandIndex, DocumentModel, EditDocumentModel, IsabelleDocument,
+  ReadOnlyDocumentModel, TheoryPreloader}
 import isabelle.eclipse.core.util.AdapterUtil.adapt
 import isabelle.eclipse.core.util.LoggingActor
 import isabelle.eclipse.ui.annotations.{IsabelleAnnotations, TheoryViewerAnnotations}
@@ -50,6 +51,9 @@ object TheoryEditor {
   val EDITOR_ID = "isabelle.eclipse.ui.theoryEditor"
   val EDITOR_SCOPE = "isabelle.eclipse.ui.theoryEditorScope"
 
+  /** Documents shorter than this (in characters) are decoded directly in the UI thread */
+  private val DECODE_INLINE_LENGTH = 64 * 1024
+
 }
 
 class TheoryEditor extends TextEditor {
@@ -65,6 +69,9 @@ class TheoryEditor extends TextEditor {
 
   /** A flag to indicate that Isabelle document needs initialisation (do symbols) */
   @volatile private var needDocumentInit = false
+
+  /** The background job decoding document symbols, if one is pending */
+  private var decodeJob: Option[Job] = None
   
   private var editable = true
 
@@ -82,7 +89,7 @@ class TheoryEditor extends TextEditor {
         // upon system init, initialise editor document - the symbols have changed then
         case Isabelle.SystemInit => {
           needDocumentInit = true
-          uiJob("Initialising Isabelle Document") { initDocument() }
+          uiJob("Initialising Isabelle Document") { decodeDocument() }
         }
         // when session is init/shutdown, update the editor state accordingly
         case Isabelle.SessionInit(session) => uiJob("Initialising Isabelle Editor") { initState(session) }
@@ -133,6 +140,10 @@ class TheoryEditor extends TextEditor {
     // disconnect the old state
     disposeState()
 
+    // the pending decoding is for the previous input
+    decodeJob foreach (_.cancel())
+    decodeJob = None
+
     super.doSetInput(input)
 
     if (init) {
@@ -182,7 +193,11 @@ class TheoryEditor extends TextEditor {
 
   private def initState(session: Session, input: IEditorInput = getEditorInput) {
 
-    initDocument()
+    // if the symbols are being decoded in the background, the document will get initialised
+    // afterwards, and the changes will be propagated to the prover
+    if (decodeJob.isEmpty) {
+      decodeDocument()
+    }
     
     val name = createDocumentName(input)
     
@@ -225,12 +240,63 @@ class TheoryEditor extends TextEditor {
 
 
   /**
-   * Initialise document symbols
+   * Decodes the document symbols in a background job, and initialises the document with
+   * the result afterwards. This avoids freezing the UI when decoding large documents.
+   * Small documents are decoded directly.
+   *
+   * If the decoding is cancelled by the user, the document stays encoded (and marked for
+   * initialisation), so that it gets decoded again on the next initialisation.
    */
-  private def initDocument() = if (needDocumentInit) {
+  private def decodeDocument() = if (needDocumentInit) {
+
+    // the symbols have changed, so cancel the previous decoding if still running
+    decodeJob foreach (_.cancel())
+    decodeJob = None
+
+    // check the provider in case the editor has been disposed
+    Option(getDocumentProvider) map (_.getDocument(getEditorInput)) match {
+      case Some(isaDoc: IsabelleDocument) if isaDoc.base.getLength >= DECODE_INLINE_LENGTH => {
+        val bulk = isaDoc.bulkInit()
+
+        val job = new Job("Decoding Isabelle symbols") {
+          override protected def run(monitor: IProgressMonitor): IStatus = {
+            val job = this
+            val decoded = bulk.decode(monitor)
+
+            uiJob("Initialising Isabelle Document") {
+              // apply only if the decoding is still relevant
+              if (decodeJob.exists(_ eq job)) {
+                decodeJob = None
+                // if cancelled by the user (not superseded), keep the document encoded
+                // rather than decoding it in the UI thread
+                if (decoded) {
+                  initDocument(Some(bulk))
+                }
+              }
+            }
+
+            if (decoded) Status.OK_STATUS else Status.CANCEL_STATUS
+          }
+        }
+
+        decodeJob = Some(job)
+        job.schedule()
+      }
+
+      case _ => initDocument()
+    }
+  }
+
+  /**
+   * Initialise document symbols (using the text decoded in bulk, if available)
+   */
+  private def initDocument(bulk: Option[IsabelleDocument.BulkInit] = None) = if (needDocumentInit) {
     document match {
       case isaDoc: IsabelleDocument => preserveScroll(getSourceViewer) {
-        isaDoc.init()
+        bulk match {
+          case Some(decoded) => isaDoc.init(decoded)
+          case None => isaDoc.init()
+        }
         // also reset undo manager, because if there are undo actions,
         // they mess up encoded/decoded appearance
         getSourceViewer.resetPlugins
@@ -262,6 +328,9 @@ class TheoryEditor extends TextEditor {
 
     IsabelleCore.isabelle.systemEvents -= systemListener
 
+    decodeJob foreach (_.cancel())
+    decodeJob = None
+
     // TODO review what happens if a second editor is opened for the same input
     disposeState()
     resourceManager.dispose()
@@ -330,7 +399,7 @@ class TheoryEditor extends TextEditor {
   def setSelection(command: Command, regionInCommand: Option[IRegion]) {
 
     // find the command in the snapshot
-    val commandStart = isabelleModel.flatMap(_.snapshot.node.command_start(command))
+    val commandStart = isabelleModel.flatMap(model => CommandIndex(model.snapshot).start(command))
 
     // get the full command range
     commandStart.map(new Region(_, command.length)) foreach { cmdRange =>
@@ -358,7 +427,11 @@ class TheoryEditor extends TextEditor {
 
     val markers = new TheoryViewerAnnotations(
       Some(isabelleModel.snapshot),
-      annotationModel)
+      annotationModel,
+      Option(getSourceViewer))
+
+    /** The background job loading theory imports */
+    private var importsJob: Option[Job] = None
 
     def init() {
       
@@ -374,12 +447,40 @@ class TheoryEditor extends TextEditor {
     }
 
     def dispose() {
+      importsJob foreach (_.cancel())
+      markers.cancelBackfill()
       commandChange.dispose()
       disposePerspective()
     }
 
-    def refreshViewUI(changedRanges: Option[List[Range]] = None) =
-      asyncUnlessDisposed(control)(refreshView(changedRanges))
+    /** The refresh waiting for the UI thread, if any: further refreshes are merged into it */
+    private var pendingRefresh: Option[Option[List[Range]]] = None
+
+    /**
+     * Refreshes the view in the UI thread. If a refresh is already waiting for the UI thread,
+     * the changes are merged into it instead, so at most one refresh pass is queued at a time.
+     */
+    def refreshViewUI(changedRanges: Option[List[Range]] = None) {
+
+      val queued = synchronized {
+        val queued = pendingRefresh.isDefined
+        pendingRefresh = Some(pendingRefresh map {
+          CommandChangeHelper.mergeChanges(_, changedRanges)
+        } getOrElse changedRanges)
+        queued
+      }
+
+      if (!queued) {
+        asyncUnlessDisposed(control) {
+          val ranges = synchronized {
+            val ranges = pendingRefresh.flatten
+            pendingRefresh = None
+            ranges
+          }
+          refreshView(ranges)
+        }
+      }
+    }
 
     /**
      * Refreshes the text presentation.
@@ -409,48 +510,31 @@ class TheoryEditor extends TextEditor {
     }
 
     /**
-     * Loads imported theories to Isabelle. Initialises document models for each of the dependency
-     * but does not open new editors.
+     * Loads imported theories to Isabelle. Initialises document nodes for each of the dependency
+     * but does not open new editors. The theories are loaded in a background job, and submitted
+     * to the prover all together.
      *
      * TODO ask to open new editors as in jEdit?
      */
     private def loadTheoryImports() {
 
-      val nodes = pendingDependencies()
-
-      nodes.foreach(node => {
-
-        // resolve document URI to load the file contents
-        val uri = resolveDocumentUri(node)
-
-        val fileStore =
-          try {
-            Some(EFS.getStore(uri))
-          } catch {
-            case e: CoreException => {
-              // cannot load parent - skip
-              log(error(Some(e)))
-              None
-            }
-          }
+      // theories open in other editors are submitted by their own document models
+      val loadedNodes = openEditorNodes()
+      val session = isabelleModel.session
 
-        // create the editor input to feed to document provider
-        fileStore.map(EditorUtil.getEditorInput) foreach { input =>
-          withDocument(input) { document =>
-            {
-              // init document model
-              val model = new EditDocumentModel(isabelleModel.session, document, node)
-              model.init()
-              // dispose immediately after initialisation
-              model.dispose()
-            }
-          }
+      val job = new Job("Loading theory imports") {
+        override protected def run(monitor: IProgressMonitor): IStatus = {
+          val nodes = pendingDependencies(loadedNodes)
+          if (TheoryPreloader.preload(session, nodes, monitor)) Status.OK_STATUS
+          else Status.CANCEL_STATUS
         }
+      }
 
-      })
+      importsJob = Some(job)
+      job.schedule()
     }
 
-    private def pendingDependencies(): List[Document.Node.Name] = {
+    private def pendingDependencies(loadedNodes: Set[Document.Node.Name]): List[Document.Node.Name] = {
 
       val thyInfo = new Thy_Info(isabelleModel.session.thy_load)
 
@@ -459,26 +543,15 @@ class TheoryEditor extends TextEditor {
       // get the dependencies for this name and filter the duplicates as well as this editor
       val dependencies = thyInfo.dependencies(true, List(currentName)).deps
       val dependencyNodes = dependencies.map(_.name).distinct.filter(_ != currentName)
-      
-      // get document models for each open editor and resolve their names
-      val loadedNodes = EditorUtil.getOpenEditors.asScala.map(
-        editor => adapt(editor.getAdapter _)(classOf[DocumentModel])).flatten.map(_.name).toSet
 
       dependencyNodes.filterNot(loadedNodes.contains)
     }
 
-    private def withDocument(input: AnyRef)(f: IDocument => Unit) =
-      try {
-        val provider = getDocumentProvider
-
-        provider.connect(input)
-        val document = provider.getDocument(input)
-        f(document)
-        provider.disconnect(input)
-
-      } catch {
-        case e: CoreException => log(error(Some(e)))
-      }
+    /** Retrieves node names of documents open in the editors. Must be called in the UI thread. */
+    private def openEditorNodes(): Set[Document.Node.Name] =
+      // get document models for each open editor and resolve their names
+      EditorUtil.getOpenEditors.asScala.map(
+        editor => adapt(editor.getAdapter _)(classOf[DocumentModel])).flatten.map(_.name).toSet
   }
 
 }
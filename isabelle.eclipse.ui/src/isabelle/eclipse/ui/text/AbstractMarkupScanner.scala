@@ -1,11 +1,16 @@
 package isabelle.eclipse.ui.text
 
+import java.lang.ref.WeakReference
+
+import scala.collection.mutable.{ArrayBuffer, WeakHashMap}
+
 import org.eclipse.jface.text.IDocument
 import org.eclipse.jface.text.rules.{IToken, Token}
 
 import isabelle.{Markup, Text, XML}
 import isabelle.Command
 import isabelle.Document.Snapshot
+import isabelle.eclipse.core.text.CommandIndex
 
 
 /**
@@ -13,31 +18,88 @@ import isabelle.Document.Snapshot
  * 
  * The markups of interest need to be provided by implementing classes.
  *
+ * The tokens of each command are calculated for the whole command and cached for its state,
+ * so repeated scans of the same text (e.g. when scrolling or editing nearby) are served from
+ * the cache, and only the commands with changed states query their markup again.
+ *
  * @author Andrius Velykis
  */
 abstract class AbstractMarkupScanner(snapshot: => Option[Snapshot])
-    extends AbstractTokenStreamScanner {
+    extends AbstractTokenBufferScanner {
+
+  import AbstractMarkupScanner._
 
-  protected def tokenStream(document: IDocument, offset: Int, length: Int): Stream[TokenInfo] =
+  /** Cached tokens of commands (relative to the command start) with the state they are for */
+  private val tokenCache = WeakHashMap[Command, CommandTokens]()
+
+  /** Tokens referenced by the cached token indices */
+  private val tokenTable = ArrayBuffer[IToken]()
+  private var tokenIndices = Map[IToken, Int]()
+
+  protected def scanTokens(document: IDocument, offset: Int, length: Int, tokens: TokenBuffer) =
     snapshot match {
       case None => {
         // snapshot (Isabelle session) is not available, so cannot get the markup
-        // use stream with undefined token
-        undefinedStream(offset, length)
+        // use undefined token
+        addUndefined(tokens, offset, length)
       }
 
       case Some(snapshot) => {
-        // create markup stream to get tokens
+        // collect the cached tokens of commands in the range
         val range = Text.Range(offset, offset + length)
-        val markups = supportedMarkups
-        
-        val markupInfos = snapshot.cumulate_markup(range, None, Some(markups), markupMatch)
-        
-        // map markup infos to TokenInfo stream 
-        markupInfos map tokenInfo
+        val formerRange = snapshot.revert(range)
+
+        for ((command, commandStart) <- CommandIndex(snapshot).commandRange(formerRange)) {
+          val state = snapshot.state.command_state(snapshot.version, command)
+          val cached = commandTokens(state)
+
+          for (i <- cached.pieces(formerRange - commandStart)) {
+            val pieceRange = Text.Range(cached.starts(i), cached.stops(i)) + commandStart
+            val tokenRange = snapshot.convert(pieceRange.restrict(formerRange))
+            tokens.add(token(cached.tokens(i)), tokenRange.start, tokenRange.length)
+          }
+        }
       }
     }
 
+  /** Retrieves the tokens of the command state, relative to the command start. */
+  private def commandTokens(state: Command.State): CommandTokens =
+    tokenCache.get(state.command) match {
+      // command states are immutable, so the tokens are valid while the state is the same
+      case Some(cached) if cached.state.get eq state => cached
+      case _ => {
+        val tokens = calcCommandTokens(state)
+        tokenCache.put(state.command, tokens)
+        tokens
+      }
+    }
+
+  /** Calculates the tokens of the whole command, skipping the empty pieces. */
+  private def calcCommandTokens(state: Command.State): CommandTokens = {
+    val markupInfos = state.markup.cumulate[Option[IToken]](
+      state.command.range, None, Some(supportedMarkups), markupMatch(state))
+
+    val pieces = markupInfos.filterNot(_.range.is_singularity).toArray
+
+    new CommandTokens(new WeakReference(state),
+      pieces map (_.range.start),
+      pieces map (_.range.stop),
+      pieces map (info => tokenIndex(info.info)))
+  }
+
+  private def tokenIndex(token: Option[IToken]): Int = token match {
+    case None => NO_TOKEN
+    case Some(t) => tokenIndices.getOrElse(t, {
+      val index = tokenTable.size
+      tokenTable += t
+      tokenIndices += (t -> index)
+      index
+    })
+  }
+
+  private def token(index: Int): IToken =
+    if (index == NO_TOKEN) Token.UNDEFINED else tokenTable(index)
+
   protected object MarkupName {
     def unapply(info: Any): Option[String] =
       info match {
@@ -52,11 +114,42 @@ abstract class AbstractMarkupScanner(snapshot: => Option[Snapshot])
   protected def markupMatch(state: Command.State): 
     PartialFunction[(Option[IToken], Text.Markup), Option[IToken]]
   
-  private def tokenInfo(tokenInfo: Text.Info[Option[IToken]]) = 
-    TokenInfo(tokenInfo.info getOrElse Token.UNDEFINED, 
-        tokenInfo.range.start, tokenInfo.range.stop - tokenInfo.range.start)
-
   /** Allow subclasses to specify different JFace tokens for Isabelle markup, e.g. with colours, etc. */
   protected def getToken(markupType: String): IToken = new Token(markupType)
 
 }
+
+object AbstractMarkupScanner {
+
+  /** Token index of pieces without a token (undefined) */
+  private val NO_TOKEN = -1
+
+  /**
+   * Tokens of a command state, relative to the command start. The ordered token pieces are kept
+   * in primitive arrays: piece `i` spans `starts(i)` to `stops(i)` and has token `tokens(i)`
+   * (index in the scanner token table).
+   *
+   * The state is referenced weakly: it references the command, which would otherwise keep
+   * the weak cache key reachable and the entry would never be released.
+   */
+  private class CommandTokens(val state: WeakReference[Command.State],
+                              val starts: Array[Int],
+                              val stops: Array[Int],
+                              val tokens: Array[Int]) {
+
+    /** Indices of the pieces overlapping the given range */
+    def pieces(range: Text.Range): Range = {
+      // find the first piece ending after the range start (the pieces are ordered)
+      val found = java.util.Arrays.binarySearch(stops, range.start)
+      val first = if (found >= 0) found + 1 else -found - 1
+
+      var last = first
+      while (last < starts.length && starts(last) < range.stop) {
+        last += 1
+      }
+
+      first until last
+    }
+  }
+
+}
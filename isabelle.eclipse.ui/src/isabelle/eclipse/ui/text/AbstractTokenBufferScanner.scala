@@ -0,0 +1,100 @@
+package isabelle.eclipse.ui.text
+
+import org.eclipse.jface.text.IDocument
+import org.eclipse.jface.text.rules.IToken
+import org.eclipse.jface.text.rules.ITokenScanner
+import org.eclipse.jface.text.rules.Token
+
+
+/** Abstract token scanner for buffer-based token scanning. Implementing classes need to fill
+  * the token buffer for the given range.
+  * <p>
+  * The class provides functionality to cater for gaps between scanned tokens. If a gap is encountered,
+  * it is filled with UNDEFINED token.
+  * </p>
+  * <p>
+  * The token buffer is reused for each scanned range, so scanning does not allocate objects
+  * per token.
+  * </p>
+  * 
+  * @author Andrius Velykis 
+  */
+trait AbstractTokenBufferScanner extends ITokenScanner {
+
+  /** The tokens for the scan range */
+  private val tokens = new TokenBuffer
+
+  /** Index of the next token in the buffer */
+  private var nextIndex = 0
+
+  /** Last token information to get offset/length */
+  private var lastOffset = 0
+  private var lastLength = 0
+  
+  override def setRange(document: IDocument, offset: Int, length: Int) {
+    // mark the start of the range as the last token
+    lastOffset = offset
+    lastLength = 0
+
+    // collect the tokens to read
+    tokens.clear()
+    nextIndex = 0
+    scanTokens(document, offset, length, tokens)
+    normaliseTokens(tokens, offset)
+  }
+  
+  /** Scans the given document range and adds the tokens to the buffer, which will then be queried */
+  protected def scanTokens(document: IDocument, offset: Int, length: Int, tokens: TokenBuffer)
+
+  /** A convenience method to add UNDEFINED token for the given range */
+  protected def addUndefined(tokens: TokenBuffer, offset: Int, length: Int) =
+    tokens.add(Token.UNDEFINED, offset, length)
+
+
+  /**
+   * Normalise tokens to ensure that they are not overlapping,
+   * otherwise exceptions occur in SWT.
+   */
+  private def normaliseTokens(tokens: TokenBuffer, offset: Int) {
+    var end = offset
+    for (i <- 0 until tokens.size) {
+      val newOffset = end max tokens.offset(i)
+      val newEnd = tokens.end(i) max newOffset
+
+      tokens.update(i, newOffset, newEnd - newOffset)
+      end = newEnd
+    }
+  }
+
+    
+  def nextToken(): IToken = {
+    
+    if (nextIndex < tokens.size) {
+      
+      val offset = tokens.offset(nextIndex)
+      val lastEnd = lastOffset + lastLength
+      
+      // check if there is a gap between the next token and the last one
+      if (offset > lastEnd) {
+        // gap found - return undefined token for the gap
+        lastOffset = lastEnd
+        lastLength = offset - lastEnd
+        Token.UNDEFINED
+      } else {
+        // no gap - use the next token and move to the remaining tokens
+        lastOffset = offset
+        lastLength = tokens.length(nextIndex)
+        nextIndex += 1
+        tokens.token(nextIndex - 1)
+      }
+    } else {
+      // no more tokens left - EOF
+      Token.EOF
+    }
+  }
+
+  def getTokenOffset() = lastOffset
+
+  def getTokenLength() = lastLength
+  
+}
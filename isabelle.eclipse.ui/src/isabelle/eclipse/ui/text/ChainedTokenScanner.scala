@@ -12,118 +12,135 @@ import org.eclipse.jface.text.rules.{IToken, ITokenScanner}
  */
 class ChainedTokenScanner(top: ITokenScanner, bottom: ITokenScanner,
                           merge: ((IToken, IToken) => IToken) = TokenUtil.Merge.takeTopToken)
-    extends AbstractTokenStreamScanner {
+    extends AbstractTokenBufferScanner {
 
-  protected def tokenStream(document: IDocument, offset: Int, length: Int): Stream[TokenInfo] = {
+  /** Reusable buffers for defined tokens of the chained scanners */
+  private val topTokens = new TokenBuffer
+  private val bottomTokens = new TokenBuffer
+
+  protected def scanTokens(document: IDocument, offset: Int, length: Int, tokens: TokenBuffer) {
     // update the scanners with the new range
     top.setRange(document, offset, length)
     bottom.setRange(document, offset, length)
     
-    // treat scanners as streams and construct a composite stream from them
-    tokenStream(tokenDefStream(top), tokenDefStream(bottom))
+    // read the scanners and construct composite tokens from them
+    readDefinedTokens(top, topTokens)
+    readDefinedTokens(bottom, bottomTokens)
+
+    mergeTokens(topTokens, bottomTokens, tokens)
+
+    topTokens.clear()
+    bottomTokens.clear()
   }
 
-  private def tokenStream(topStream: Stream[TokenInfo], bottomStream: Stream[TokenInfo]): Stream[TokenInfo] =
-    (topStream.headOption, bottomStream.headOption) match {
-
-      // both streams are empty - nothing left
-      case (None, None) => Stream.empty
-
-      // only top remaining - use them
-      case (Some(top), None) => Stream.cons(top, tokenStream(topStream.tail, bottomStream))
-
-      // only bottom remaining - use them
-      case (None, Some(bottom)) => Stream.cons(bottom, tokenStream(topStream, bottomStream.tail))
-
-      case (Some(top), Some(bottom)) => {
-        // both streams have elements. We need to determine which one comes next:
-        // * if one of the elements is before another, take it whole
-        // * if one of the elements is partially before another, take the partial bit as a new token
-        // * if both elements start at the same time, merge them
-        //
-        // Illustrations of some of these cases:
-        //
-        // The whole bottom is before the next top
-        //            <--top-->
-        // <-bottom->|<--nextBottom?-->
-        //
-        // Bottom is longer than top, so cut to the top offset
-        //    <--top-->
-        // <--|-bottom---->
-        //
-        // Both start at the same place - merge and cut to whichever is shorter
-        // <--top-->
-        // <-bottom-|-->
+  /**
+   * Merges top and bottom tokens. We need to determine which one comes next:
+   *  - if one of the tokens is before another, take it whole
+   *  - if one of the tokens is partially before another, take the partial bit as a new token
+   *  - if both tokens start at the same time, merge them
+   *
+   * Illustrations of some of these cases:
+   * {{{
+   * The whole bottom is before the next top
+   *            <--top-->
+   * <-bottom->|<--nextBottom?-->
+   *
+   * Bottom is longer than top, so cut to the top offset
+   *    <--top-->
+   * <--|-bottom---->
+   *
+   * Both start at the same place - merge and cut to whichever is shorter
+   * <--top-->
+   * <-bottom-|-->
+   * }}}
+   *
+   * The current tokens of both sides are tracked by index and (possibly cut) start offset.
+   */
+  private def mergeTokens(topTokens: TokenBuffer, bottomTokens: TokenBuffer, tokens: TokenBuffer) {
+
+    var t = 0
+    var topStart = if (topTokens.isEmpty) 0 else topTokens.offset(0)
+    var b = 0
+    var bottomStart = if (bottomTokens.isEmpty) 0 else bottomTokens.offset(0)
+
+    def topRemaining = t < topTokens.size
+    def bottomRemaining = b < bottomTokens.size
+
+    while (topRemaining || bottomRemaining) {
+
+      if (!bottomRemaining) {
+        // only top remaining - use them
+        tokens.add(topTokens.token(t), topStart, topTokens.end(t) - topStart)
+        t += 1
+        if (topRemaining) topStart = topTokens.offset(t)
+
+      } else if (!topRemaining) {
+        // only bottom remaining - use them
+        tokens.add(bottomTokens.token(b), bottomStart, bottomTokens.end(b) - bottomStart)
+        b += 1
+        if (bottomRemaining) bottomStart = bottomTokens.offset(b)
 
+      } else {
         // the end of token is either the first end of the current token, or the start of the other
         // token, whichever is smaller.
         // this means that one of the tokens can be fully before another starts, or they can overlap
-        lazy val tokenEnd = (top.end min bottom.end)
-        lazy val overlapEnd = (top.offset max bottom.offset) min tokenEnd
+        val tokenEnd = topTokens.end(t) min bottomTokens.end(b)
 
-        val nextToken =
-          if (top.offset == bottom.offset) {
+        val nextEnd =
+          if (topStart == bottomStart) {
             // both tokens start at the same place
             // merge them and use the range to whichever ends first
-            TokenInfo(merge(top.token, bottom.token), top.offset, tokenEnd - top.offset)
+            tokens.add(merge(topTokens.token(t), bottomTokens.token(b)), topStart, tokenEnd - topStart)
+            tokenEnd
           } else {
-
             // one of the tokens is before the other
             // select the token and cut to the overlap (note that a whole token is taken if no overlap)
-            val (token, start) =
-              if (top.offset < bottom.offset) (top.token, top.offset)
-              else (bottom.token, bottom.offset)
-            TokenInfo(token, start, overlapEnd - start)
+            val overlapEnd = (topStart max bottomStart) min tokenEnd
+            if (topStart < bottomStart) {
+              tokens.add(topTokens.token(t), topStart, overlapEnd - topStart)
+            } else {
+              tokens.add(bottomTokens.token(b), bottomStart, overlapEnd - bottomStart)
+            }
+            overlapEnd
           }
 
-        val nextEnd = nextToken.end
-        // drop both streams to the end offset of the next token
-        val remainingTop = dropToOffset(topStream, nextEnd)
-        val remainingBottom = dropToOffset(bottomStream, nextEnd)
-
-        // construct the stream with the token at the start and remaining (dropped) streams
-        Stream.cons(nextToken, tokenStream(remainingTop, remainingBottom))
+        // drop both sides to the end offset of the next token,
+        // cutting the overlapping token at the front if necessary
+        //   <--|--token--><--nextToken?-->
+        //      | nextEnd
+        val nextT = dropTo(topTokens, t, nextEnd)
+        topStart = if (nextT == t) topStart max nextEnd else startFrom(topTokens, nextT, nextEnd)
+        t = nextT
+
+        val nextB = dropTo(bottomTokens, b, nextEnd)
+        bottomStart = if (nextB == b) bottomStart max nextEnd else startFrom(bottomTokens, nextB, nextEnd)
+        b = nextB
       }
     }
+  }
 
-
-  private def dropToOffset(tokenStream : Stream[TokenInfo], offset: Int): Stream[TokenInfo] = {
-    // drop tokens before the offset
-    val droppedStream = tokenStream.dropWhile(info => (info.end <= offset))
-    
-    // an overlapping token may still be at the front of the stream,
-    // cut the token to the offset if necessary
-    if (!droppedStream.isEmpty) {
-      val info = droppedStream.head
-      if (info.offset < offset) {
-        // found overlapping token: cut it
-        // <--|--token--><--nextToken?--> 
-        //    | offset
-        val cutInfo = TokenInfo(info.token, offset, info.end - offset)
-        Stream.cons(cutInfo, droppedStream.tail)
-      } else {
-        // nothing to cut
-        droppedStream
-      }
-    } else {
-      droppedStream
+  /** Finds the index of the first token (from the given one) that ends after the offset */
+  private def dropTo(tokens: TokenBuffer, from: Int, offset: Int): Int = {
+    var i = from
+    while (i < tokens.size && tokens.end(i) <= offset) {
+      i += 1
     }
+    i
   }
-  
-  private def tokenDefStream(scanner: ITokenScanner) =
-    tokenStream(scanner) filter (info => !info.token.isUndefined)
-  
-  private def tokenStream(scanner: ITokenScanner): Stream[TokenInfo] = {
-    val info = tokenInfo(scanner)
-    
-    if (info.token.isEOF) {
-      Stream.empty
-    } else {
-      Stream.cons(info, tokenStream(scanner))
+
+  /** The start of the token at the index, cut to the offset */
+  private def startFrom(tokens: TokenBuffer, index: Int, offset: Int): Int =
+    if (index < tokens.size) tokens.offset(index) max offset else 0
+
+  /** Reads the scanner tokens to the buffer, skipping the undefined ones */
+  private def readDefinedTokens(scanner: ITokenScanner, tokens: TokenBuffer) {
+    var token = scanner.nextToken
+    while (!token.isEOF) {
+      if (!token.isUndefined) {
+        tokens.add(token, scanner.getTokenOffset(), scanner.getTokenLength())
+      }
+      token = scanner.nextToken
     }
   }
-  
-  private def tokenInfo(scanner: ITokenScanner): TokenInfo = 
-    TokenInfo(scanner.nextToken, scanner.getTokenOffset(), scanner.getTokenLength())
 
 }
@@ -3,7 +3,7 @@ package isabelle.eclipse.ui.text
 import org.eclipse.jface.text.IDocument
 import org.eclipse.jface.text.rules.{IToken, Token}
 
-import isabelle.{Outer_Syntax, Scan, Session}
+import isabelle.{Outer_Syntax, Session}
 
 
 /**
@@ -13,45 +13,66 @@ import isabelle.{Outer_Syntax, Scan, Session}
  *
  * @author Andrius Velykis
  */
-class IsabelleTokenScanner(session: => Option[Session]) extends AbstractTokenStreamScanner {
+class IsabelleTokenScanner(session: => Option[Session]) extends AbstractTokenBufferScanner {
+
+  /** Scan contexts at line starts of the last scanned document */
+  private var contextCache: Option[ScanContextCache] = None
 
   private def syntax: Option[Outer_Syntax] =
     session filter (_.is_ready) map (_.recent_syntax)
 
-  protected def tokenStream(document: IDocument, offset: Int, length: Int): Stream[TokenInfo] =
+  private def scanContexts(document: IDocument): ScanContextCache = contextCache match {
+    case Some(cache) if cache.document eq document => cache
+    case _ => {
+      // new document - detach the old cache from its document
+      contextCache foreach (_.dispose())
+      val cache = new ScanContextCache(document)
+      contextCache = Some(cache)
+      cache
+    }
+  }
+
+  protected def scanTokens(document: IDocument, offset: Int, length: Int, tokens: TokenBuffer) =
     syntax match {
       case None => {
         // syntax (Isabelle session) is not available, so cannot tokenise
-        // use stream with undefined token
-        undefinedStream(offset, length)
+        // use undefined token
+        addUndefined(tokens, offset, length)
       }
 
       case Some(syntax) => {
-        // use syntax scanner to get Isabelle tokens
-        // TODO do a line-based scanning?
-        val source = document.get(offset, length)
-        val (tokens, _) = syntax.scan_context(source, Scan.Finished)
+        // use syntax scanner to get Isabelle tokens, resuming the scanning at the line start
+        // with the cached context there (e.g. if the range starts inside a multi-line comment)
+        val line = document.getLineOfOffset(offset)
+        val lineOffset = document.getLineOffset(line)
+        val context = scanContexts(document).contextAt(syntax, line)
+
+        val source = document.get(lineOffset, offset + length - lineOffset)
+        val (syntaxTokens, _) = syntax.scan_context(source, context)
         
-        // map the token list as the token stream
-        tokenStream(syntax, tokens, offset)
+        addTokens(syntax, syntaxTokens, lineOffset, offset, tokens)
       }
     }
   
-  /** Constructs a token stream from the token list */
-  private def tokenStream(syntax: Outer_Syntax, tokens: List[isabelle.Token], offset: Int): Stream[TokenInfo] =
-    if (tokens.isEmpty) {
-      Stream.empty
-    } else {
-      
-      // map first token to TokenInfo
-      val token = tokens.head
-      val length = token.source.length();
-      val tokenInfo = TokenInfo(getTokenAll(syntax, token), offset, length)
+  /**
+   * Adds the tokens from the token list (starting at `sourceOffset`) one after another,
+   * skipping the ones before the range start.
+   */
+  private def addTokens(syntax: Outer_Syntax,
+                        syntaxTokens: List[isabelle.Token],
+                        sourceOffset: Int,
+                        rangeOffset: Int,
+                        tokens: TokenBuffer) {
+    var tokenOffset = sourceOffset
+    for (token <- syntaxTokens) {
+      val length = token.source.length
+      if (tokenOffset + length > rangeOffset) {
+        tokens.add(getTokenAll(syntax, token), tokenOffset, length)
+      }
       // adjust next token offset
-      val nextOffset = offset + length
-      
-      Stream.cons(tokenInfo, tokenStream(syntax, tokens.tail, nextOffset))
+      tokenOffset += length
     }
+  }
   
   /** Handles SPACE and UNPARSED token kinds as core JFace tokens, delegates everything else to #getToken(Token) */
   protected def getTokenAll(syntax: Outer_Syntax, token: isabelle.Token): IToken = {
@@ -0,0 +1,131 @@
+package isabelle.eclipse.ui.text
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.eclipse.jface.text.{BadLocationException, DocumentEvent, IDocument, IDocumentListener}
+
+import isabelle.{Outer_Syntax, Scan}
+
+
+/**
+ * A cache of Isabelle scanner contexts at the start of each document line. It allows resuming
+ * the scanning at any line, e.g. inside a multi-line comment or verbatim block.
+ *
+ * The cache follows the document changes: the contexts after a changed line are recalculated
+ * lazily (when requested) line by line, until the context converges with the one cached before
+ * the change. The remaining cached contexts are valid again from then on.
+ *
+ * The contexts only depend on the lexical structure (quotes, comments, verbatim), and not on
+ * the outer syntax keywords, so they are kept when the syntax changes.
+ *
+ * Note: there is no synchronisation, so use it from the UI thread (as the document changes).
+ *
+ * @author Andrius Velykis
+ */
+class ScanContextCache(val document: IDocument) {
+
+  /** Scan contexts at the start of each line (`null` if unknown) */
+  private val contexts = ArrayBuffer[Scan.Context](Scan.Finished)
+
+  /** The last line with a valid context, the lines after it need to be checked */
+  private var validTo = 0
+
+  /**
+   * The last dirty line - the cached contexts after it can be reused if they converge.
+   * Besides the changed lines, this covers the lines rescanned after an earlier change without
+   * converging: the contexts after them are still from before that change.
+   * `-1` if there are no dirty lines to rescan.
+   */
+  private var dirtyEnd = -1
+
+  // the changed lines before the change
+  private var changeStart = 0
+  private var changeEnd = 0
+
+  // notified before other listeners, so that the cache is updated before the presentation
+  private val listener = new IDocumentListener {
+
+    override def documentAboutToBeChanged(event: DocumentEvent) {
+      changeStart = lineOfOffset(event.getOffset)
+      changeEnd = lineOfOffset(event.getOffset + event.getLength)
+    }
+
+    override def documentChanged(event: DocumentEvent) {
+      val textLength = Option(event.getText).map(_.length).getOrElse(0)
+      linesChanged(changeStart, changeEnd, lineOfOffset(event.getOffset + textLength))
+    }
+  }
+
+  document.addPrenotifiedDocumentListener(listener)
+
+  def dispose() = document.removePrenotifiedDocumentListener(listener)
+
+  private def lineOfOffset(offset: Int): Int =
+    try {
+      document.getLineOfOffset(offset)
+    } catch {
+      // should not happen for event offsets, but invalidate everything if so
+      case e: BadLocationException => 0
+    }
+
+  /** Updates the cache after lines `start` to `oldEnd` have been replaced by `start` to `newEnd`. */
+  private def linesChanged(start: Int, oldEnd: Int, newEnd: Int) {
+
+    def shifted(line: Int) = if (line > oldEnd) line + (newEnd - oldEnd) else line
+
+    // if the last rescan has not converged, the contexts after it are from before the change
+    val unconverged = if (validTo < contexts.size - 1) shifted(validTo) else -1
+
+    // the context at the start of the first changed line is unaffected
+    if (contexts.size - 1 <= oldEnd) {
+      // nothing cached after the change
+      if (contexts.size > start + 1) {
+        contexts.reduceToSize(start + 1)
+      }
+    } else {
+      // replace the contexts of changed lines with unknown ones, keeping the ones after
+      contexts.remove(start + 1, oldEnd - start)
+      contexts.insertAll(start + 1, Seq.fill(newEnd - start)(null))
+    }
+
+    // keep the earlier dirty lines if they have not been rescanned yet (`-1` if none)
+    dirtyEnd = List(shifted(dirtyEnd), unconverged, newEnd).max
+    validTo = math.min(validTo, start)
+  }
+
+  /** Retrieves the scan context at the start of the given line, scanning the lines before if needed. */
+  @throws[BadLocationException]
+  def contextAt(syntax: Outer_Syntax, line: Int): Scan.Context = {
+
+    while (validTo < line) {
+      val next = scanLine(syntax, validTo, contexts(validTo))
+      val nextLine = validTo + 1
+
+      if (nextLine >= contexts.size) {
+        contexts += next
+        validTo = nextLine
+      } else if (nextLine > dirtyEnd && contexts(nextLine) == next) {
+        // converged with the context before the change - the rest of the cache is valid
+        validTo = contexts.size - 1
+      } else {
+        contexts(nextLine) = next
+        validTo = nextLine
+      }
+
+      // converged or rescanned all cached lines - nothing is dirty anymore
+      if (validTo == contexts.size - 1) {
+        dirtyEnd = -1
+      }
+    }
+
+    contexts(line)
+  }
+
+  /** Scans the line from the given context and returns the context at its end */
+  private def scanLine(syntax: Outer_Syntax, line: Int, context: Scan.Context): Scan.Context = {
+    val lineText = document.get(document.getLineOffset(line), document.getLineLength(line))
+    val (_, nextContext) = syntax.scan_context(lineText, context)
+    nextContext
+  }
+
+}
@@ -0,0 +1,64 @@
+package isabelle.eclipse.ui.text
+
+import org.eclipse.jface.text.rules.IToken
+
+
+/**
+ * A reusable buffer of scanned tokens, keeping their offsets, lengths and tokens in parallel
+ * arrays. The arrays grow as needed and are kept when the buffer is cleared, so scanning
+ * the same scanner repeatedly does not allocate anything per token.
+ *
+ * @author Andrius Velykis
+ */
+class TokenBuffer(initialCapacity: Int = 64) {
+
+  private var offsets = new Array[Int](initialCapacity)
+  private var lengths = new Array[Int](initialCapacity)
+  private var tokens = new Array[IToken](initialCapacity)
+
+  private var count = 0
+
+  def size = count
+
+  def isEmpty = count == 0
+
+  def offset(index: Int): Int = offsets(index)
+
+  def length(index: Int): Int = lengths(index)
+
+  def end(index: Int): Int = offsets(index) + lengths(index)
+
+  def token(index: Int): IToken = tokens(index)
+
+  def add(token: IToken, offset: Int, length: Int) {
+    if (count == offsets.length) {
+      grow()
+    }
+
+    offsets(count) = offset
+    lengths(count) = length
+    tokens(count) = token
+    count += 1
+  }
+
+  /** Updates the range of the token at the given index */
+  def update(index: Int, offset: Int, length: Int) {
+    offsets(index) = offset
+    lengths(index) = length
+  }
+
+  /** Empties the buffer, keeping the allocated arrays */
+  def clear() {
+    // release the tokens
+    java.util.Arrays.fill(tokens.asInstanceOf[Array[AnyRef]], 0, count, null)
+    count = 0
+  }
+
+  private def grow() {
+    val capacity = math.max(offsets.length * 2, 16)
+    offsets = java.util.Arrays.copyOf(offsets, capacity)
+    lengths = java.util.Arrays.copyOf(lengths, capacity)
+    tokens = java.util.Arrays.copyOf(tokens.asInstanceOf[Array[AnyRef]], capacity).asInstanceOf[Array[IToken]]
+  }
+
+}
@@ -6,6 +6,7 @@ import org.eclipse.swt.SWT
 
 import isabelle.{Markup, Protocol, Session, Text, XML}
 import isabelle.Document.Snapshot
+import isabelle.eclipse.core.text.CommandIndex
 import isabelle.eclipse.ui.editors.{EditorUtil, TheoryEditor}
 
 
@@ -79,7 +80,7 @@ class IsabelleActionHyperlinkDetector(session: => Option[Session],
   
   
   private def snapshotText(snapshot: Snapshot, range: Text.Range): String = {
-    val cmds = snapshot.node.command_range(range).toList
+    val cmds = CommandIndex(snapshot).commandRange(range).toList
     
     if (cmds.isEmpty) {
       ""
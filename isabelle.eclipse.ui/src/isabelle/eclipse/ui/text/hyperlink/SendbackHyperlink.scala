@@ -6,7 +6,7 @@ import org.eclipse.jface.text.hyperlink.IHyperlink
 import isabelle.{Markup, Position, Properties}
 import isabelle.Document
 import isabelle.Document.Snapshot
-import isabelle.eclipse.core.text.DocumentModel
+import isabelle.eclipse.core.text.{CommandIndex, DocumentModel}
 import isabelle.eclipse.ui.editors.EditorUtil2.{insertAsNewLine, replaceSelected}
 import isabelle.eclipse.ui.internal.IsabelleUIPlugin.{error, log}
 
@@ -61,7 +61,7 @@ class SendbackHyperlink(linkRegion: IRegion,
 
     snapshot.state.execs.get(execId).map(_.command) match {
       case Some(command) =>
-        snapshot.node.command_start(command) match {
+        CommandIndex(snapshot).start(command) match {
           case Some(start) =>
             // replace the command text in the document with sendback text
             document.replace(start, command.proper_range.length, text)
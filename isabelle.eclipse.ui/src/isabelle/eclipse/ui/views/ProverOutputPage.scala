@@ -1,13 +1,18 @@
 package isabelle.eclipse.ui.views
 
 import scala.actors.Actor._
+import scala.collection.mutable.ListBuffer
 
+import org.eclipse.core.runtime.{IProgressMonitor, IStatus, Status}
+import org.eclipse.core.runtime.jobs.Job
 import org.eclipse.jface.action.{Action, GroupMarker, IAction}
 import org.eclipse.jface.commands.ActionHandler
 import org.eclipse.jface.text.Document
 import org.eclipse.jface.text.source.AnnotationModel
 import org.eclipse.jface.viewers.{IPostSelectionProvider, ISelectionChangedListener, SelectionChangedEvent}
 import org.eclipse.swt.SWT
+import org.eclipse.swt.events.{ControlAdapter, ControlEvent}
+import org.eclipse.swt.graphics.Font
 import org.eclipse.swt.widgets.{Composite, Control}
 import org.eclipse.ui.{IActionBars, ISharedImages, IWorkbenchCommandConstants, PlatformUI}
 import org.eclipse.ui.handlers.IHandlerService
@@ -15,6 +20,7 @@ import org.eclipse.ui.part.{IPageSite, Page}
 
 import isabelle.{Command, Future, Linear_Set, Pretty, Protocol, Session, Text, XML}
 import isabelle.Document.Snapshot
+import isabelle.eclipse.core.text.CommandIndex
 import isabelle.eclipse.core.util.{LoggingActor, SessionEvents}
 import isabelle.eclipse.ui.annotations.{IsabelleAnnotationConstants, IsabelleAnnotations}
 import isabelle.eclipse.ui.editors.{IsabellePartitions, IsabelleTheorySourceViewer, TheoryEditor}
@@ -31,12 +37,76 @@ object ProverOutputPage {
   private val viewId = IsabelleUIPlugin.plugin.pluginId + ".proverOutputView"
   private val propShowTrace = viewId + ".showTrace"
   private val propLinkEditor = viewId + ".linkEditor"
+  private val propOutputLimit = viewId + ".outputLimit"
   
   // init default values once
   private def prefs = IsabelleUIPlugin.plugin.getPreferenceStore
   prefs.setDefault(propShowTrace, false);
   prefs.setDefault(propLinkEditor, true);
+  // maximum length (in characters) of command messages to render, e.g. for huge traces
+  prefs.setDefault(propOutputLimit, 4 * 1024 * 1024);
+
+  /** Approximate length (in characters) of messages to render in a single output page */
+  private val PAGE_LENGTH = 64 * 1024
   
+  /** Output width (in characters) if the view size is not available */
+  private val DEFAULT_OUTPUT_WIDTH = 100
+  private val MIN_OUTPUT_WIDTH = 20
+
+  /** Maximum number of rendered outputs to keep (each references a result snapshot) */
+  private val MAX_CACHED_OUTPUTS = 16
+
+  private case class RenderKey(command: Command, showTrace: Boolean, width: Int, page: Int)
+
+  /** Output page rendered for the command state */
+  private case class RenderedOutput(state: Command.State,
+                                    text: String,
+                                    snapshot: Snapshot,
+                                    page: Int,
+                                    pageCount: Int)
+
+  /**
+   * Splits the messages into pages of about `PAGE_LENGTH` characters. Messages after the
+   * `limit` is reached are omitted, replaced by a note at the end.
+   */
+  private def outputPages(messages: List[XML.Tree], limit: Int): List[List[XML.Tree]] = {
+
+    val pages = ListBuffer[List[XML.Tree]]()
+    val page = ListBuffer[XML.Tree]()
+    var pageLength = 0
+    var totalLength = 0
+
+    val msgs = messages.iterator
+    while (msgs.hasNext && totalLength < limit) {
+      val msg = msgs.next
+      val length = textLength(msg)
+
+      if (pageLength > 0 && pageLength + length > PAGE_LENGTH) {
+        pages += page.toList
+        page.clear()
+        pageLength = 0
+      }
+
+      page += msg
+      pageLength += length
+      totalLength += length
+    }
+
+    val omitted = msgs.size
+    if (omitted > 0) {
+      page += XML.Text("(" + omitted + " more messages not shown: output limit reached)")
+    }
+
+    pages += page.toList
+    pages.toList
+  }
+
+  /** Length of the text content in the XML tree */
+  private def textLength(tree: XML.Tree): Int = tree match {
+    case XML.Text(text) => text.length
+    case XML.Elem(_, body) => body.foldLeft(0)(_ + textLength(_))
+  }
+
 }
 
 /**
@@ -82,6 +152,27 @@ class ProverOutputPage(val editor: TheoryEditor) extends Page with SessionEvents
   @volatile private var currentCommand: Option[Command] = None
   @volatile private var currentResultsSnapshot: Option[Snapshot] = None
 
+  /** The output currently displayed */
+  private var currentOutput: Option[RenderedOutput] = None
+
+  /** The output width of the last update */
+  private var currentOutputWidth = DEFAULT_OUTPUT_WIDTH
+
+  /** The average character width of the output font, calculated once for the font */
+  private var charWidth: Option[(Font, Int)] = None
+
+  /** The output page to display (only the page is rendered and annotated) */
+  private var currentPage = 0
+
+  /** The background job rendering the latest requested output, if one is running */
+  @volatile private var renderJob: Option[Job] = None
+
+  // access ordered (LRU) cache of rendered outputs, accessed in the UI thread
+  private val renderCache = new java.util.LinkedHashMap[RenderKey, RenderedOutput](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[RenderKey, RenderedOutput]) =
+      size > MAX_CACHED_OUTPUTS
+  }
+
   // selection listener to update output when editor selection changes
   val editorListener = selectionListener { _ => updateOutputAtCaret() }
   
@@ -97,6 +188,13 @@ class ProverOutputPage(val editor: TheoryEditor) extends Page with SessionEvents
         currentResultsSnapshot,
         Some(editor))
 
+    // re-render the output if the view width changes
+    outputViewer.getTextWidget.addControlListener(new ControlAdapter {
+      override def controlResized(e: ControlEvent) =
+        if (outputWidth != currentOutputWidth) {
+          updateOutput(_ => currentCommand)
+        }
+    })
 
     // init session event listeners
     initSessionEvents()
@@ -154,6 +252,8 @@ class ProverOutputPage(val editor: TheoryEditor) extends Page with SessionEvents
       {
         // also add group markers to allow command-based additions
         mgr.add(new GroupMarker("info-view"))
+        mgr.add(previousPageAction)
+        mgr.add(nextPageAction)
         mgr.add(new ToggleShowTraceAction())
         mgr.add(new GroupMarker("view"))
         mgr.add(toggleLinkAction)
@@ -172,8 +272,10 @@ class ProverOutputPage(val editor: TheoryEditor) extends Page with SessionEvents
 
     removeEditorListener(editorListener)
     disposeSessionEvents()
+    cancelRendering()
 
     outputViewer.dispose()
+    renderCache.clear()
     
     super.dispose()
   }
@@ -187,53 +289,164 @@ class ProverOutputPage(val editor: TheoryEditor) extends Page with SessionEvents
 
   private def updateOutput(cmdProvider: (Unit => Option[Command])) {
     // retrieve the current command
+    val previousCommand = currentCommand
     currentCommand = cmdProvider()
+    currentOutputWidth = outputWidth
+
+    // start with the first page for a different command
+    if (currentCommand != previousCommand) {
+      currentPage = 0
+    }
+
+    // any running rendering is superseded
+    cancelRendering()
 
-    // render the command if available
-    val result = currentCommand flatMap { cmd => renderOutput(cmd, showTrace) }
+    // render the command if available - do not update if there is nothing to render
+    currentCommand foreach { cmd => renderOutput(cmd, showTrace, currentOutputWidth, currentPage) }
+  }
+
+  /** Displays the rendered output, unless it is already displayed */
+  private def showOutput(output: RenderedOutput) = if (!currentOutput.exists(_ eq output)) {
+
+    this.currentOutput = Some(output)
+    this.currentResultsSnapshot = Some(output.snapshot)
+
+    // the requested page may not exist anymore
+    currentPage = output.page
+    previousPageAction.update(output)
+    nextPageAction.update(output)
+
+    // avoid replacing the document if the text is the same (e.g. only markup has changed)
+    val document = outputViewer.getDocument
+    if (document.get != output.text) {
+      document.set(output.text)
+    }
+    outputViewer.updateAnnotations()
+  }
 
-    // set the result if available
-    result match {
-      case None => // ignore - do not update if there is nothing to render
+  /** The output width in characters, calculated from the current view width */
+  private def outputWidth: Int = {
+    val widget = outputViewer.getTextWidget
+    val areaWidth = widget.getClientArea.width - widget.getLeftMargin - widget.getRightMargin
 
-      case Some((resultsText, resultSnapshot)) => {
+    if (areaWidth <= 0) {
+      // not laid out yet
+      DEFAULT_OUTPUT_WIDTH
+    } else {
+      math.max(areaWidth / math.max(averageCharWidth, 1), MIN_OUTPUT_WIDTH)
+    }
+  }
 
-        this.currentResultsSnapshot = Some(resultSnapshot)
-        outputViewer.getDocument.set(resultsText)
-        outputViewer.updateAnnotations()
+  /** The average character width of the output font (recalculated only if the font changes) */
+  private def averageCharWidth: Int = {
+    val widget = outputViewer.getTextWidget
+    val font = widget.getFont
+
+    charWidth match {
+      case Some((cachedFont, width)) if cachedFont == font => width
+      case _ => {
+        val width = SWTUtil.initializeFontMetrics(widget, font).getAverageCharWidth
+        charWidth = Some((font, width))
+        width
       }
     }
   }
 
   private def commandAtOffset(offset: Int): Option[Command] = {
     // get the command at the snapshot if the model is available
-    editor.isabelleModel flatMap { _.snapshot.node.command_at(offset).map(_._1) }
+    editor.isabelleModel flatMap { model => CommandIndex(model.snapshot).commandAt(offset).map(_._1) }
   }
 
-  private def renderOutput(cmd: Command, showTrace: Boolean): Option[(String, Snapshot)] =
+  private def renderOutput(cmd: Command, showTrace: Boolean, width: Int, page: Int) =
     // TODO do not output when invisible?
     editor.isabelleModel match {
-      case None => { System.out.println("Isabelle model not available"); None }
+      case None => System.out.println("Isabelle model not available")
 
       case Some(model) => {
         // model is available - get the results and render them
         val snapshot = model.snapshot
         
         val cmdState = snapshot.state.command_state(snapshot.version, cmd)
-        val resultsMarkup = commandStateMarkup(cmdState, showTrace)
-        
-        // TODO compare resultsMarkup with current before rendering to avoid replacement?
 
-        val separateMessagesMarkup = Pretty.separate(resultsMarkup)
-        // TODO implement formatting based on view size
-        val outputWidth = 100
-        val formattedMarkup = Pretty.formatted(separateMessagesMarkup, outputWidth)//, Pretty_UI.font_metric(fm))
-        
-        val (text, state) = renderDocument(snapshot, cmdState.results, formattedMarkup)
-        Some(text, state)
+        // command states are immutable, so the rendered output is valid while the state is the same
+        val key = RenderKey(cmd, showTrace, width, page)
+        Option(renderCache.get(key)) filter (_.state eq cmdState) match {
+          case Some(output) => showOutput(output)
+          case None => renderInBackground(key, snapshot, cmdState)
+        }
       }
     }
 
+  /**
+   * Renders the output in a background job and displays it in the UI thread, unless
+   * superseded by another update in the meantime.
+   */
+  private def renderInBackground(key: RenderKey, snapshot: Snapshot, cmdState: Command.State) {
+
+    val job = new Job("Rendering prover output") {
+      override protected def run(monitor: IProgressMonitor): IStatus = {
+
+        val job = this
+        // the job is superseded if cancelled or a new one has been started
+        def current = !monitor.isCanceled && renderJob.exists(_ eq job)
+
+        val output = if (current) renderState(snapshot, cmdState, key, monitor) else None
+
+        output match {
+          case Some(out) => {
+            SWTUtil.asyncUnlessDisposed(Option(control)) {
+              // keep the rendered output even if superseded - it may be requested again
+              renderCache.put(key, out)
+              if (current) {
+                showOutput(out)
+              }
+            }
+            Status.OK_STATUS
+          }
+
+          case None => Status.CANCEL_STATUS
+        }
+      }
+    }
+
+    job.setPriority(Job.INTERACTIVE)
+    job.setSystem(true)
+
+    renderJob = Some(job)
+    job.schedule()
+  }
+
+  /** Cancels the background output rendering, if one is running. */
+  private def cancelRendering() {
+    renderJob foreach (_.cancel())
+    renderJob = None
+  }
+
+  /**
+   * Renders the requested page of the command state output, or `None` if cancelled.
+   * Only the messages of the page are formatted and rendered (and annotated when displayed),
+   * so large outputs (e.g. traces) do not need to be held in a single document.
+   */
+  private def renderState(snapshot: Snapshot,
+                          cmdState: Command.State,
+                          key: RenderKey,
+                          monitor: IProgressMonitor): Option[RenderedOutput] = {
+
+    val resultsMarkup = commandStateMarkup(cmdState, key.showTrace)
+    val pages = outputPages(resultsMarkup, prefs.getInt(propOutputLimit))
+    val page = math.min(key.page, pages.size - 1)
+
+    val separateMessagesMarkup = Pretty.separate(pages(page))
+    val formattedMarkup = Pretty.formatted(separateMessagesMarkup, key.width)//, Pretty_UI.font_metric(fm))
+
+    if (monitor.isCanceled) {
+      None
+    } else {
+      val (text, resultSnapshot) = renderDocument(snapshot, cmdState.results, formattedMarkup)
+      Some(RenderedOutput(cmdState, text, resultSnapshot, page, pages.size))
+    }
+  }
+
 
   private def commandStateMarkup(st: Command.State, showTrace: Boolean): List[XML.Tree] = {
     val msgs = st.results.entries.map(_._2).filterNot(Protocol.is_result)
@@ -307,6 +520,32 @@ class ProverOutputPage(val editor: TheoryEditor) extends Page with SessionEvents
     }
   }
 
+  private lazy val previousPageAction = new PageAction(false)
+  private lazy val nextPageAction = new PageAction(true)
+
+  /** Action to move to the previous/next page of the output. */
+  private class PageAction(forward: Boolean)
+      extends Action(if (forward) "Next Page" else "Previous Page") {
+
+    private def images = PlatformUI.getWorkbench().getSharedImages();
+    setImageDescriptor(images.getImageDescriptor(
+        if (forward) ISharedImages.IMG_TOOL_FORWARD else ISharedImages.IMG_TOOL_BACK));
+    setDisabledImageDescriptor(images.getImageDescriptor(
+        if (forward) ISharedImages.IMG_TOOL_FORWARD_DISABLED else ISharedImages.IMG_TOOL_BACK_DISABLED));
+    setEnabled(false)
+
+    def update(output: RenderedOutput) {
+      val target = output.page + (if (forward) 1 else -1)
+      setEnabled(target >= 0 && target < output.pageCount)
+      setToolTipText(getText + " (page " + (output.page + 1) + " of " + output.pageCount + ")")
+    }
+
+    override def run() {
+      currentPage += (if (forward) 1 else -1)
+      updateOutput(_ => currentCommand)
+    }
+  }
+
   /** Action to toggle linking with selection. */
   private class ToggleLinkAction
       extends ToggleAction("Link with Editor", "Link with Editor",
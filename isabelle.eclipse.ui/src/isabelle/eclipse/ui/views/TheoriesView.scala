@@ -1,6 +1,7 @@
 package isabelle.eclipse.ui.views
 
 import scala.actors.Actor._
+import scala.collection.mutable
 
 import org.eclipse.jface.layout.{GridDataFactory, GridLayoutFactory, TreeColumnLayout}
 import org.eclipse.jface.resource.{JFaceResources, LocalResourceManager, ResourceManager}
@@ -14,21 +15,21 @@ import org.eclipse.jface.viewers.{
   IDoubleClickListener,
   IStructuredSelection,
   ITreeContentProvider,
+  OwnerDrawLabelProvider,
   StructuredViewer,
   TreeViewerColumn,
   Viewer,
   ViewerCell
 }
 import org.eclipse.swt.SWT
-import org.eclipse.swt.custom.TreeEditor
 import org.eclipse.swt.graphics.Image
-import org.eclipse.swt.widgets.{Composite, Label, ProgressBar, TreeItem}
+import org.eclipse.swt.widgets.{Composite, Event, Label, TreeItem}
 import org.eclipse.ui.{ISharedImages, PartInitException, PlatformUI}
 import org.eclipse.ui.dialogs.{FilteredTree, PatternFilter}
 import org.eclipse.ui.ide.IDE
 import org.eclipse.ui.part.ViewPart
 
-import isabelle.{Document, Protocol, Session}
+import isabelle.{Command, Document, Linear_Set, Protocol, Session}
 import isabelle.eclipse.core.IsabelleCore
 import isabelle.eclipse.core.resource.URIThyLoad
 import isabelle.eclipse.core.util.{LoggingActor, SessionEvents}
@@ -38,6 +39,52 @@ import isabelle.eclipse.ui.internal.IsabelleUIPlugin.{error, log}
 import isabelle.eclipse.ui.util.SWTUtil
 
 
+/**
+ * @author Andrius Velykis
+ */
+object TheoriesView {
+
+  // command status categories, as counted in Protocol.node_status()
+  private val UNPROCESSED = 0
+  private val RUNNING = 1
+  private val FINISHED = 2
+  private val WARNED = 3
+  private val FAILED = 4
+
+  private def commandCategory(state: Command.State): Int = {
+    val status = Protocol.command_status(state.status)
+    if (status.is_running) RUNNING
+    else if (status.is_finished) {
+      if (state.results.entries.exists(entry => Protocol.is_warning(entry._2))) WARNED
+      else FINISHED
+    }
+    else if (status.is_failed) FAILED
+    else UNPROCESSED
+  }
+
+  /**
+   * Command status statistics of a node, which can be updated for individual commands.
+   * The statistics are valid while the node has the same commands.
+   */
+  private class NodeStats(val commands: Linear_Set[Command]) {
+
+    private val categories = mutable.Map[Command, Int]()
+    private val counts = new Array[Int](5)
+
+    def contains(command: Command) = categories.contains(command)
+
+    def update(command: Command, category: Int) {
+      categories.get(command) foreach { old => counts(old) -= 1 }
+      categories(command) = category
+      counts(category) += 1
+    }
+
+    def status = Protocol.Node_Status(
+      counts(UNPROCESSED), counts(RUNNING), counts(FINISHED), counts(WARNED), counts(FAILED))
+  }
+
+}
+
 /**
  * A view that lists all open Isabelle theories.
  *
@@ -49,13 +96,15 @@ import isabelle.eclipse.ui.util.SWTUtil
  */
 class TheoriesView extends ViewPart with SessionEvents {
 
+  import TheoriesView._
+
   // the actor to react to session events
   override protected val sessionActor = LoggingActor {
     loop {
       react {
         case phase: Session.Phase => runInUI { handlePhase(Some(phase)) }
 
-        case changed: Session.Commands_Changed => runInUI { handleUpdate(Some(changed.nodes)) }
+        case changed: Session.Commands_Changed => runInUI { handleUpdate(Some(changed)) }
 
         case bad => System.err.println("Theories view: ignoring bad message " + bad)
       }
@@ -72,7 +121,8 @@ class TheoriesView extends ViewPart with SessionEvents {
   } 
 
   private var nodeStatus: Map[Document.Node.Name, Protocol.Node_Status] = Map()
-  private var nodeProgress: Map[Document.Node.Name, (TreeEditor, ProgressBar)] = Map()
+  // command statistics of nodes, updated incrementally for changed commands (in the UI thread)
+  private val nodeStats = mutable.Map[Document.Node.Name, NodeStats]()
 
   private var phaseLabel: Label = _
   private var viewer: TheoriesFilteredTree = _
@@ -116,60 +166,92 @@ class TheoriesView extends ViewPart with SessionEvents {
     phaseLabel.setText("Prover: " + phaseStr)
   }
 
-  private def handleUpdate(restriction: Option[Set[Document.Node.Name]] = None) {
+  private def handleUpdate(changed: Option[Session.Commands_Changed] = None) {
     
     val session = IsabelleCore.isabelle.session
-    val updates = session map (s => updateNodeStatus(s, restriction))
+    val updates = session map (s => updateNodeStatus(s, changed))
 
     updates match {
-      case Some((Some(updatedThyList), changedNodes)) => {
+      case Some((Some(updatedThyList), _)) => {
         val currentThyList = viewer.getViewer.getInput
-        if (updatedThyList == currentThyList) {
-          // just refresh the changed nodes
-          if (!updatedThyList.isEmpty) {
-            // jumping through hoops due to method overload..
-            val v: StructuredViewer = viewer.getViewer
-            val changed: Array[Object] = changedNodes.toArray
-            v.update(changed, null)
-          }
-        } else {
+        if (updatedThyList != currentThyList) {
           // set the new list
           viewer.getViewer.setInput(updatedThyList)
         }
       }
 
+      case Some((None, changedNodes)) if !changedNodes.isEmpty => {
+        // just refresh the changed nodes
+        // jumping through hoops due to method overload..
+        val v: StructuredViewer = viewer.getViewer
+        val changed: Array[Object] = changedNodes.toArray
+        v.update(changed, null)
+      }
+
       case _ => // ignore update
     }
   }
 
+  /**
+   * Updates the status of nodes with changed commands (or all nodes if no change is given).
+   * Only the changed commands are checked, unless the node commands have changed.
+   *
+   * @return  the new theory list if theories have been added, and the nodes with changed status
+   */
   private def updateNodeStatus(session: Session,
-                               restriction: Option[Set[Document.Node.Name]]): 
+                               changed: Option[Session.Commands_Changed]):
       (Option[List[Document.Node.Name]], List[Document.Node.Name]) = {
     val snapshot = session.snapshot()
 
-    val iterator = restriction match {
-      case Some(names) => names.iterator.map(name => (name, snapshot.version.nodes(name)))
-      case None => snapshot.version.nodes.entries
+    def commandCategories(commands: Iterator[Command]) =
+      commands map { cmd => (cmd, commandCategory(snapshot.state.command_state(snapshot.version, cmd))) }
+
+    val names = changed match {
+      case Some(c) => c.nodes.toList
+      case None => snapshot.version.nodes.entries.map(_._1).toList
     }
 
-    val changedNodeInfo = iterator.toList
-    val changedNodes = changedNodeInfo map (_._1)
+    val theoryNames = names filterNot (name => session.thy_load.loaded_theories(name.theory))
+    val newNodes = changed.isEmpty || theoryNames.exists(name => !nodeStats.contains(name))
 
-    val updatedNodeStatus = (changedNodeInfo foldLeft nodeStatus) {
-      case (status, (name, node)) =>
-        if (session.thy_load.loaded_theories(name.theory)) status
-        else status + (name -> Protocol.node_status(snapshot.state, snapshot.version, node))
-    }
+    val changedNodes = theoryNames filter { name =>
+      val node = snapshot.version.nodes(name)
 
-    if (nodeStatus != updatedNodeStatus) {
-      nodeStatus = updatedNodeStatus
+      nodeStats.get(name) match {
+        // the same commands - only update the changed ones
+        case Some(stats) if stats.commands eq node.commands => changed match {
+          case Some(c) => {
+            val nodeCommands = c.commands.iterator filter stats.contains
+            commandCategories(nodeCommands) foreach { case (cmd, category) => stats.update(cmd, category) }
+          }
+          case None => commandCategories(node.commands.iterator) foreach {
+            case (cmd, category) => stats.update(cmd, category)
+          }
+        }
 
-      val thysList = snapshot.version.nodes.topological_order.filter(
-        (name: Document.Node.Name) => nodeStatus.isDefinedAt(name))
-      (Some(thysList), changedNodes)
-    } else {
-      (None, changedNodes)
+        // new node or its commands have changed - count all commands
+        case _ => {
+          val stats = new NodeStats(node.commands)
+          commandCategories(node.commands.iterator) foreach { case (cmd, category) => stats.update(cmd, category) }
+          nodeStats(name) = stats
+        }
+      }
+
+      val status = nodeStats(name).status
+      val statusChanged = nodeStatus.get(name) != Some(status)
+      nodeStatus += (name -> status)
+      statusChanged
     }
+
+    val thysList =
+      if (newNodes) {
+        Some(snapshot.version.nodes.topological_order.filter(
+          (name: Document.Node.Name) => nodeStatus.isDefinedAt(name)))
+      } else {
+        None
+      }
+
+    (thysList, changedNodes)
   }
 
 
@@ -293,52 +375,54 @@ class TheoriesView extends ViewPart with SessionEvents {
   }
 
   /**
-   * A label provider that shows progress bar in the cell.
+   * A label provider that paints a progress bar in the cell (owner-drawn, without widgets).
    */
-  private class TheoriesProgressLabelProvider extends CellLabelProvider {
+  private class TheoriesProgressLabelProvider extends OwnerDrawLabelProvider {
+
+    private val margin = 2
 
-    private val max = 100
+    override def measure(event: Event, element: AnyRef) {}
 
-    override def update(cell: ViewerCell) = cell.getElement match {
+    override def paint(event: Event, element: AnyRef) = element match {
 
       case doc: Document.Node.Name => {
 
-        val (editor, progress) = nodeProgress.get(doc) match {
-          case Some(ed) => ed
-          case _ => {
-            val tree = viewer.getViewer.getTree
-            val progress = new ProgressBar(viewer.getViewer.getTree, SWT.NONE)
-            progress.setMinimum(0)
-            progress.setMaximum(max)
-            progress.setSelection(0)
-            val editor = new TreeEditor(tree)
-            editor.grabHorizontal = true
-            editor.grabVertical = true
-            nodeProgress += (doc -> (editor, progress))
-            (editor, progress)
+        val ratio = nodeStatus.get(doc) match {
+          case Some(status) if status.total > 0 => {
+            val processed = status.total - status.unprocessed
+            processed.toDouble / status.total
           }
+          case _ => 0.0
         }
 
-        val status = nodeStatus.get(doc)
-        val selection = status match {
-          case Some(status) => {
-            val total = status.total
-            val processed = total - status.unprocessed
+        val bounds = event.item.asInstanceOf[TreeItem].getBounds(event.index)
+        val width = bounds.width - 2 * margin - 1
+        val height = bounds.height - 2 * margin - 1
 
-            val ratio = (processed.toDouble / total) * max
-            ratio.ceil.toInt
-          }
-          case None => 0
-        }
-        progress.setSelection(selection)
-        progress.setToolTipText(tooltip(cell.getElement))
+        if (width > 0 && height > 0) {
+          val gc = event.gc
+          val display = event.display
+          val x = bounds.x + margin
+          val y = bounds.y + margin
+
+          val oldBackground = gc.getBackground
+          val oldForeground = gc.getForeground
 
-        val cellItem = cell.getItem.asInstanceOf[TreeItem]
-        if (editor.getItem != cellItem) {
-          editor.setEditor(progress, cellItem, 1)
+          gc.setBackground(display.getSystemColor(SWT.COLOR_LIST_SELECTION))
+          gc.fillRectangle(x, y, (width * ratio).ceil.toInt, height)
+
+          gc.setForeground(display.getSystemColor(SWT.COLOR_WIDGET_NORMAL_SHADOW))
+          gc.drawRectangle(x, y, width, height)
+
+          gc.setBackground(oldBackground)
+          gc.setForeground(oldForeground)
         }
       }
+
+      case _ =>
     }
+
+    override def getToolTipText(element: Any): String = tooltip(element)
   }
 
 
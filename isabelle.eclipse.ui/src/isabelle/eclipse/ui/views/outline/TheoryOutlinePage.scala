@@ -7,17 +7,17 @@ import org.eclipse.core.runtime.jobs.Job
 import org.eclipse.jface.action.Action
 import org.eclipse.jface.resource.{JFaceResources, LocalResourceManager}
 import org.eclipse.jface.text.{DocumentEvent, IDocumentListener, IRegion, ITextViewer, Region}
-import org.eclipse.jface.viewers.IStructuredSelection
+import org.eclipse.jface.viewers.{IStructuredSelection, TreeViewer}
 import org.eclipse.swt.SWT
 import org.eclipse.swt.widgets.{Composite, Control}
 import org.eclipse.ui.IActionBars
 import org.eclipse.ui.views.contentoutline.ContentOutlinePage
 
-import isabelle.{Outer_Syntax, Session}
+import isabelle.{Command, Markup_Tree, Outer_Syntax, Session}
 import isabelle.Document.Snapshot
 import isabelle.Thy_Syntax.Structure
 import isabelle.eclipse.core.IsabelleCore
-import isabelle.eclipse.core.text.DocumentModel
+import isabelle.eclipse.core.text.{CommandIndex, DocumentModel}
 import isabelle.eclipse.core.util.{LoggingActor, SessionEvents}
 import isabelle.eclipse.ui.editors.TheoryEditor
 import isabelle.eclipse.ui.internal.IsabelleImages
@@ -79,6 +79,10 @@ class TheoryOutlinePage(editor: TheoryEditor, editorViewer: => ITextViewer)
   
   lazy val theoryRawContent = new TheoryRawContentProvider
   lazy val theoryRawLabel = new TheoryRawLabelProvider(resourceManager)
+
+  /** The raw outline, updated per command (in the UI thread) */
+  private lazy val rawOutline = new TheoryRawOutline(
+      TheoryRawLabelProvider.rawContent _, TheoryRawLabelProvider.rawTooltip _)
   
   
   def reload() {
@@ -132,19 +136,20 @@ class TheoryOutlinePage(editor: TheoryEditor, editorViewer: => ITextViewer)
   }
 
 
-  private def parseTheoryRaw(snapshot: Snapshot,
-                             monitor: IProgressMonitor): Iterator[TheoryRawEntry] = {
-
-    val contentRenderer = TheoryRawLabelProvider.rawContent _
-    val tooltipRenderer = TheoryRawLabelProvider.rawTooltip _
+  /** Collects the markup trees of all commands, the raw outline entries are then updated per command */
+  private def parseTheoryRaw(snapshot: Snapshot, monitor: IProgressMonitor): RawCommands = {
 
-    for {
-      (command, commandStart) <- snapshot.node.command_range() if !monitor.isCanceled
+    val commands = for {
+      (command, commandStart) <- CommandIndex(snapshot).iterator if !monitor.isCanceled
       tree = snapshot.state.command_state(snapshot.version, command).markup
-      branchEntry <- TheoryRawEntry.branches(tree, TheoryRawEntry.Info(command, commandStart, contentRenderer, tooltipRenderer))
-    } yield branchEntry
+    } yield (command, commandStart, tree)
+
+    RawCommands(commands.toList)
   }
 
+  /** Markup trees of commands, with their start offsets */
+  private case class RawCommands(commands: List[(Command, Int, Markup_Tree)])
+
 
   private def setInput(input: AnyRef, rawTree: Boolean) {
 
@@ -168,13 +173,39 @@ class TheoryOutlinePage(editor: TheoryEditor, editorViewer: => ITextViewer)
           v.setLabelProvider(labelProvider)
         }
 
-        if (v.getInput != input) {
-          v.setInput(input)
+        input match {
+          case RawCommands(commands) => {
+            val changes = rawOutline.update(commands)
+            if (v.getInput eq rawOutline) {
+              // only update the changed entries, so that expansion and selection are kept
+              updateRawEntries(v, changes)
+            } else {
+              v.setInput(rawOutline)
+            }
+          }
+
+          case _ => if (v.getInput != input) {
+            v.setInput(input)
+          }
         }
       }
     }
   }
 
+  private def updateRawEntries(viewer: TreeViewer, changes: TheoryRawOutline.Changes) {
+
+    if (!changes.removed.isEmpty) {
+      // jumping through hoops due to method overload..
+      val removed: Array[Object] = changes.removed.toArray
+      viewer.remove(removed)
+    }
+
+    // insert in the order of positions, so that the previous entries are already in place
+    changes.added foreach { case (entry, position) => viewer.insert(rawOutline, entry, position) }
+
+    changes.updated foreach viewer.refresh
+  }
+
 
   def selectedRegionInEditor: Option[IRegion] = getSelection match {
     case ss: IStructuredSelection => ss.getFirstElement match {
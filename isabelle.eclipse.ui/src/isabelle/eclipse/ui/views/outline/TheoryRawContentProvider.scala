@@ -13,6 +13,7 @@ import org.eclipse.jface.viewers.{ITreeContentProvider, Viewer}
 class TheoryRawContentProvider extends ITreeContentProvider {
 
   override def getElements(parentElement: AnyRef): Array[AnyRef] = parentElement match {
+    case outline: TheoryRawOutline => outline.entries.toArray
     case list: TraversableOnce[_] => list.asInstanceOf[TraversableOnce[AnyRef]].toArray
     case _ => getChildren(parentElement)
   }
@@ -27,7 +28,11 @@ class TheoryRawContentProvider extends ITreeContentProvider {
     case _ => null
   }
 
-  override def hasChildren(element: AnyRef): Boolean = !getChildren(element).isEmpty
+  // avoid materialising the children just to check if there are any
+  override def hasChildren(element: AnyRef): Boolean = element match {
+    case entry: TheoryRawEntry => entry.hasChildren
+    case _ => !getChildren(element).isEmpty
+  }
   
   
   /**
@@ -4,20 +4,47 @@ import isabelle.{Command, Markup_Tree, Text, XML}
 
 
 /**
- * A value class encapsulating an Isabelle theory raw markup outline node.
+ * An Isabelle theory raw markup outline node.
+ *
+ * The children are materialised only when requested (e.g. when the node is expanded). The entry
+ * can be updated with a new markup subtree (e.g. when the command has new markup), in which case
+ * the children are recreated lazily, reusing the previous child entries with the same markup.
+ * The entries are compared by identity, so the viewer keeps their state (e.g. expansion).
+ *
+ * Note: there is no synchronisation, so use it from the UI thread.
  * 
  * @author Andrius Velykis
  */
 /* Adapted from Isabelle_Sidekick_Raw */
-case class TheoryRawEntry(val markup: List[XML.Elem],
-                          val rangeInCmd: Text.Range,
-                          tree: Markup_Tree,
-                          val info: TheoryRawEntry.Info,
-                          val parent: Option[TheoryRawEntry] = None) {
+class TheoryRawEntry(val markup: List[XML.Elem],
+                     val rangeInCmd: Text.Range,
+                     initialTree: Markup_Tree,
+                     val info: TheoryRawEntry.Info,
+                     val parent: Option[TheoryRawEntry] = None) {
 
-  lazy val children: Iterable[TheoryRawEntry] = TheoryRawEntry.branches(tree, info, Some(this))
+  private var tree = initialTree
 
-  lazy val range = rangeInCmd + info.commandStart
+  // the materialised children, and the previous ones to reuse when materialising for a new tree
+  private var childEntries: Option[List[TheoryRawEntry]] = None
+  private var previousChildren: List[TheoryRawEntry] = Nil
+
+  def children: List[TheoryRawEntry] = childEntries getOrElse {
+    val entries = TheoryRawEntry.branches(tree, info, Some(this), previousChildren)
+    childEntries = Some(entries)
+    previousChildren = Nil
+    entries
+  }
+
+  def hasChildren: Boolean = childEntries map (!_.isEmpty) getOrElse !tree.branches.isEmpty
+
+  /** Updates the markup subtree of the entry, the children are then recreated on request. */
+  def updateTree(newTree: Markup_Tree) = if (!(newTree eq tree)) {
+    tree = newTree
+    childEntries foreach { entries => previousChildren = entries }
+    childEntries = None
+  }
+
+  def range = rangeInCmd + info.commandStart
 
   lazy val content = info.contentRenderer(this)
 
@@ -27,21 +54,39 @@ case class TheoryRawEntry(val markup: List[XML.Elem],
 
 object TheoryRawEntry {
 
-  case class Info(val command: Command,
-                  val commandStart: Int,
-                  val contentRenderer: TheoryRawEntry => String,
-                  val tooltipRenderer: TheoryRawEntry => String)
+  /** Command of the entries, with its current start offset (updated if the command moves) */
+  class Info(val command: Command,
+             @volatile var commandStart: Int,
+             val contentRenderer: TheoryRawEntry => String,
+             val tooltipRenderer: TheoryRawEntry => String)
 
+  /**
+   * Creates entries for the branches of the markup tree. The previous entries with the same
+   * markup and range are reused (updated with the new subtree).
+   */
   def branches(tree: Markup_Tree,
                info: Info,
-               parent: Option[TheoryRawEntry] = None): Iterable[TheoryRawEntry] =
-    tree.branches map {
-      case (_, entry) => TheoryRawEntry(
-        entry.markup,
-        entry.range,
-        entry.subtree,
-        info,
-        parent)
+               parent: Option[TheoryRawEntry] = None,
+               previous: List[TheoryRawEntry] = Nil): List[TheoryRawEntry] = {
+
+    val reusable = (previous map { entry => ((entry.rangeInCmd, entry.markup), entry) }).toMap
+
+    tree.branches.toList map {
+      case (_, entry) => reusable.get((entry.range, entry.markup)) match {
+
+        case Some(reused) => {
+          reused.updateTree(entry.subtree)
+          reused
+        }
+
+        case None => new TheoryRawEntry(
+          entry.markup,
+          entry.range,
+          entry.subtree,
+          info,
+          parent)
+      }
     }
+  }
 
 }
@@ -0,0 +1,92 @@
+package isabelle.eclipse.ui.views.outline
+
+import isabelle.{Command, Markup_Tree}
+
+
+/**
+ * The raw markup outline of a theory, consisting of top-level raw entries of its commands.
+ *
+ * The outline is updated per command: the entries are only recreated for commands with changed
+ * markup, and the same entries are kept otherwise. The update reports the changes, so that
+ * the viewer can be updated with targeted calls instead of resetting its input.
+ *
+ * Note: there is no synchronisation, so use it from the UI thread.
+ *
+ * @author Andrius Velykis
+ * @see TheoryRawEntry
+ */
+class TheoryRawOutline(contentRenderer: TheoryRawEntry => String,
+                       tooltipRenderer: TheoryRawEntry => String) {
+
+  import TheoryRawOutline._
+
+  private var commandEntries: Map[Command, CommandEntries] = Map()
+
+  private var currentEntries: List[TheoryRawEntry] = Nil
+
+  /** The top-level entries of all commands, in document order */
+  def entries = currentEntries
+
+  /**
+   * Updates the outline with the given commands (with their start offsets and markup trees).
+   *
+   * @return  the removed, added (with their positions) and updated (with new children) entries
+   */
+  def update(commands: List[(Command, Int, Markup_Tree)]): Changes = {
+
+    val oldEntries = currentEntries.toSet
+
+    val newCommandEntries = commands map { case (command, commandStart, tree) =>
+
+      commandEntries.get(command) match {
+
+        // the same markup - keep the entries (only the command may have moved)
+        case Some(cmdEntries) if cmdEntries.tree eq tree => {
+          cmdEntries.info.commandStart = commandStart
+          cmdEntries
+        }
+
+        // new markup - reuse the entries with the same markup as before
+        case Some(cmdEntries) => {
+          cmdEntries.info.commandStart = commandStart
+          val entries = TheoryRawEntry.branches(tree, cmdEntries.info, None, cmdEntries.entries)
+          CommandEntries(cmdEntries.info, tree, entries)
+        }
+
+        case None => {
+          val info = new TheoryRawEntry.Info(command, commandStart, contentRenderer, tooltipRenderer)
+          CommandEntries(info, tree, TheoryRawEntry.branches(tree, info))
+        }
+      }
+    }
+
+    val changedCommands = newCommandEntries filterNot { cmdEntries =>
+      commandEntries.get(cmdEntries.info.command) exists (_ eq cmdEntries)
+    }
+
+    commandEntries = (newCommandEntries map { cmdEntries => (cmdEntries.info.command, cmdEntries) }).toMap
+    currentEntries = newCommandEntries flatMap (_.entries)
+
+    val newEntries = currentEntries.toSet
+
+    val removed = oldEntries.toList filterNot newEntries.contains
+    val added = currentEntries.zipWithIndex filterNot { case (entry, _) => oldEntries.contains(entry) }
+    // reused entries of changed commands may have new children
+    val updated = changedCommands flatMap (_.entries) filter oldEntries.contains
+
+    Changes(removed, added, updated)
+  }
+
+}
+
+object TheoryRawOutline {
+
+  private case class CommandEntries(info: TheoryRawEntry.Info,
+                                    tree: Markup_Tree,
+                                    entries: List[TheoryRawEntry])
+
+  case class Changes(removed: List[TheoryRawEntry],
+                     added: List[(TheoryRawEntry, Int)],
+                     updated: List[TheoryRawEntry])
+
+}